@@ -109,4 +109,19 @@ class StatisticsControllerIntegrationTest extends Specification {
         .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_JSON_VALUE))
         .andExpect(MockMvcResultMatchers.content().json("{\"avg\":116.82,\"max\":116.82,\"min\":116.82,\"count\":1}"))
   }
+
+  def "GET /statistics/{instrumentId}/history returns HTTP 200 with an empty StatisticsHistory object for ticks inside the sliding window"() {
+    expect:
+    mvc.perform(MockMvcRequestBuilders.get("/statistics/ABC/history").param("from", "0").param("to", "" + Long.MAX_VALUE))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_JSON_VALUE))
+        .andExpect(MockMvcResultMatchers.content().json("{\"instrument\":\"ABC\",\"resolution\":\"1s\",\"timestamps\":[],\"open\":[]," +
+            "\"high\":[],\"low\":[],\"close\":[],\"count\":[]}"))
+  }
+
+  def "GET /statistics/{instrumentId}/history returns HTTP 400 for an unknown resolution"() {
+    expect:
+    mvc.perform(MockMvcRequestBuilders.get("/statistics/ABC/history").param("from", "0").param("to", "1000").param("resolution", "5m"))
+        .andExpect(MockMvcResultMatchers.status().isBadRequest())
+  }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.service;
+
+import com.solactive.stats.generated.openapi.model.Statistics;
+import com.solactive.stats.generated.openapi.model.Tick;
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of recording ticks (including the eviction of expired buckets) and of reading the statistics for the different bucket widths
+ * and numbers of instruments.
+ *
+ * Every instrument ticks once per second, the ticks of a second are spread evenly over the second and the clock follows the tick timestamps.
+ * Therefore a bucket contains {@code INSTRUMENTS * BUCKET_WIDTH / 1000} instruments (all instruments for a bucket width of 1000 milliseconds) and the
+ * eviction cost of the expired buckets is part of the measured record cost. After every second the background step of the
+ * {@link SlidingWindowService} runs on the benchmark thread, as it does with the scheduler. The window is filled before measuring, the statistics
+ * are read from the full window without moving the clock.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InstrumentAggregatorBenchmark {
+
+  private static final int WINDOW_SIZE_SECONDS = 60;
+  private static final int EVICTION_SLICE_SIZE = 512;
+
+  @Param({"1000", "250", "100"})
+  private int bucketWidthMillis;
+
+  @Param({"1000", "20000"})
+  private int instruments;
+
+  private ManualClock clock;
+  private InstrumentAggregator instrumentAggregator;
+  private SlidingWindowService slidingWindowService;
+  private Tick[] ticks;
+  private int nextTick;
+  private long secondStartMillis;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    secondStartMillis = Instant.parse("2020-05-30T12:00:00Z").toEpochMilli();
+    clock = new ManualClock(secondStartMillis);
+    HistoryAggregator historyAggregator = new HistoryAggregator(3600L, 86400L, "");
+    instrumentAggregator = new InstrumentAggregator(() -> clock, WINDOW_SIZE_SECONDS, bucketWidthMillis, EVICTION_SLICE_SIZE,
+        historyAggregator);
+    slidingWindowService = new SlidingWindowService(instrumentAggregator, historyAggregator);
+    ticks = new Tick[instruments];
+    for (int i = 0; i < instruments; i++) {
+      ticks[i] = new Tick().instrument("INSTRUMENT-" + i).price(BigDecimal.valueOf(1_000 + i, 2));
+    }
+    /* Fill the whole window before measuring. */
+    for (long i = 0; i < (long) WINDOW_SIZE_SECONDS * instruments; i++) {
+      record();
+    }
+  }
+
+  @Benchmark
+  public void recordTick() {
+    record();
+  }
+
+  @Benchmark
+  public Statistics getStatistics() {
+    return instrumentAggregator.getStatistics();
+  }
+
+  private void record() {
+    Tick tick = ticks[nextTick];
+    clock.setMillis(secondStartMillis + nextTick * 1000L / instruments);
+    tick.setTimestamp(clock.millis());
+    instrumentAggregator.record(tick);
+    if (++nextTick == instruments) {
+      nextTick = 0;
+      secondStartMillis += 1000L;
+      slidingWindowService.moveWindow();
+    }
+  }
+
+  /**
+   * A clock that is advanced manually by the benchmark.
+   */
+  private static final class ManualClock extends Clock {
+
+    private long millis;
+
+    private ManualClock(long millis) {
+      this.millis = millis;
+    }
+
+    private void setMillis(long millis) {
+      this.millis = millis;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+  }
+}
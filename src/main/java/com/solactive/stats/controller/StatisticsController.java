@@ -17,12 +17,16 @@ package com.solactive.stats.controller;
 
 import com.solactive.stats.generated.openapi.api.StatisticsApi;
 import com.solactive.stats.generated.openapi.model.Statistics;
+import com.solactive.stats.generated.openapi.model.StatisticsHistory;
 import com.solactive.stats.generated.openapi.model.Tick;
+import com.solactive.stats.model.BarResolution;
 import com.solactive.stats.service.StatisticsService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
+import org.zalando.problem.Problem;
+import org.zalando.problem.Status;
 
 /**
  * A REST controller for the 'ticks' and 'statistics' resource. The 'ticks' resource could be placed in a separate controller, but for brevity it was
@@ -56,4 +60,16 @@ public class StatisticsController implements StatisticsApi {
   public ResponseEntity<Statistics> getStatisticsForInstrument(String instrumentId) {
     return ResponseEntity.ok(statisticsService.getStatisticsForInstrument(instrumentId));
   }
+
+  @Override
+  public ResponseEntity<StatisticsHistory> getStatisticsHistoryForInstrument(String instrumentId, Long from, Long to, String resolution) {
+    BarResolution barResolution = BarResolution.fromValue(resolution);
+    if (barResolution == null) {
+      throw Problem.valueOf(Status.BAD_REQUEST, "Unknown resolution: " + resolution);
+    }
+    if (from > to) {
+      throw Problem.valueOf(Status.BAD_REQUEST, "The 'from' timestamp must not be after the 'to' timestamp");
+    }
+    return ResponseEntity.ok(statisticsService.getHistoryForInstrument(instrumentId, from, to, barResolution));
+  }
 }
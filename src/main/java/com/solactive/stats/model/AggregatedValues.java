@@ -25,6 +25,9 @@ import lombok.ToString;
 /**
  * Value class that stores aggregated values (min. price, max. price, price sum, tick count). The class doesn't explicitly stores the average price,
  * as it can be calculated when an {@link AggregatedValues} instance will be used to generate the statistics.
+ *
+ * If the tick timestamps are provided, the open price (earliest tick) and the close price (latest tick) are tracked as well. They are only needed
+ * for rolling an expired bucket into the OHLC history (see {@link InstrumentHistory}).
  */
 @AllArgsConstructor
 @NoArgsConstructor
@@ -36,6 +39,10 @@ public class AggregatedValues {
   private BigDecimal maxPrice = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
   private BigDecimal priceSum = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
   private long count = 0L;
+  private BigDecimal openPrice = null;
+  private long openTimestamp = 0L;
+  private BigDecimal closePrice = null;
+  private long closeTimestamp = 0L;
 
   /**
    * Updates the aggregated values (min, max, sum, count) with the next tick/instrument price.
@@ -49,6 +56,50 @@ public class AggregatedValues {
     maxPrice = maxPrice.max(tickPrice);
   }
 
+  /**
+   * Updates the aggregated values (min, max, sum, count) with the next tick/instrument price and updates the open/close price according to the
+   * tick timestamp. Ticks may arrive out of order, therefore the open price is the price of the earliest and the close price the price of the
+   * latest tick.
+   *
+   * @param tickPrice The new instrument price.
+   * @param tickTimestamp The tick timestamp in milliseconds.
+   */
+  void updateValues(BigDecimal tickPrice, long tickTimestamp) {
+    updateValues(tickPrice);
+    if (openPrice == null || tickTimestamp < openTimestamp) {
+      openPrice = tickPrice;
+      openTimestamp = tickTimestamp;
+    }
+    if (closePrice == null || tickTimestamp >= closeTimestamp) {
+      closePrice = tickPrice;
+      closeTimestamp = tickTimestamp;
+    }
+  }
+
+  /**
+   * Merges the aggregated values of another aggregation (for the same bucket) into these aggregated values. The open/close price is the price of
+   * the earliest/latest tick of both aggregations.
+   *
+   * @param otherAggregatedValues The aggregated values that will be merged.
+   */
+  void merge(AggregatedValues otherAggregatedValues) {
+    if (otherAggregatedValues.isBlank()) {
+      return;
+    }
+    count += otherAggregatedValues.count;
+    priceSum = priceSum.add(otherAggregatedValues.priceSum);
+    minPrice = minPrice == null ? otherAggregatedValues.minPrice : minPrice.min(otherAggregatedValues.getMinPrice());
+    maxPrice = maxPrice.max(otherAggregatedValues.maxPrice);
+    if (otherAggregatedValues.openPrice != null && (openPrice == null || otherAggregatedValues.openTimestamp < openTimestamp)) {
+      openPrice = otherAggregatedValues.openPrice;
+      openTimestamp = otherAggregatedValues.openTimestamp;
+    }
+    if (otherAggregatedValues.closePrice != null && (closePrice == null || otherAggregatedValues.closeTimestamp >= closeTimestamp)) {
+      closePrice = otherAggregatedValues.closePrice;
+      closeTimestamp = otherAggregatedValues.closeTimestamp;
+    }
+  }
+
   /**
    * Subtracts a partial aggregation (for single second) from the current total aggregation (for the last 60 seconds). For brevity this method was
    * defined in this class and not in a subclass (e.g. TotalAggregatedValues).
@@ -82,6 +133,24 @@ public class AggregatedValues {
     return minPrice == null ? BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP) : minPrice;
   }
 
+  /**
+   * Returns the open price (price of the earliest tick).
+   *
+   * @return The open price.
+   */
+  BigDecimal getOpenPrice() {
+    return openPrice == null ? getMinPrice() : openPrice;
+  }
+
+  /**
+   * Returns the close price (price of the latest tick).
+   *
+   * @return The close price.
+   */
+  BigDecimal getClosePrice() {
+    return closePrice == null ? getMaxPrice() : closePrice;
+  }
+
   /**
    * Returns the average price for the aggregated sum and number of ticks.
    *
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A chunk of consecutive OHLC bars stored in a compact columnar format. Every column (start, open, high, low, close, count) is stored separately
+ * and every value is encoded as the zig-zag variable-length delta to the previous value of the same column. Consecutive bars have similar values,
+ * therefore most values only need one or two bytes instead of the eight bytes of a long.
+ *
+ * A chunk is appendable until it is sealed. Sealing copies the columns into a single compact buffer (on the heap or into a memory-mapped
+ * {@link HistorySpill}) with the following layout: the byte length of every column (one int per column) followed by the column bytes.
+ */
+class BarChunk {
+
+  static final int START = 0;
+  static final int OPEN = 1;
+  static final int HIGH = 2;
+  static final int LOW = 3;
+  static final int CLOSE = 4;
+  static final int COUNT = 5;
+  static final int COLUMNS = 6;
+
+  private static final int INITIAL_COLUMN_CAPACITY = 64;
+
+  /* The appendable columns, released when the chunk is sealed. */
+  private byte[][] columns = new byte[COLUMNS][INITIAL_COLUMN_CAPACITY];
+  private final int[] columnLengths = new int[COLUMNS];
+  private final long[] lastValues = new long[COLUMNS];
+
+  /* The sealed buffer and the spill block (if the chunk was spilled). */
+  private ByteBuffer sealedData;
+  private HistorySpill.Block spillBlock;
+
+  private int barCount = 0;
+  private long firstStart;
+  private long lastStart;
+
+  /**
+   * Appends a bar to the chunk.
+   *
+   * @param bar The bar values indexed by the column constants.
+   */
+  void append(long[] bar) {
+    for (int column = 0; column < COLUMNS; column++) {
+      writeVarLong(column, bar[column] - lastValues[column]);
+      lastValues[column] = bar[column];
+    }
+    if (barCount == 0) {
+      firstStart = bar[START];
+    }
+    lastStart = bar[START];
+    barCount++;
+  }
+
+  /**
+   * Seals the chunk. The bars are stored into the spill (if given) or in a compact heap buffer. If the spill fails (the spill logs the failure), the
+   * bars are kept on the heap.
+   *
+   * @param spill The optional spill, may be {@code null}.
+   */
+  void seal(HistorySpill spill) {
+    int size = Integer.BYTES * COLUMNS + Arrays.stream(columnLengths).sum();
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (int column = 0; column < COLUMNS; column++) {
+      buffer.putInt(columnLengths[column]);
+    }
+    for (int column = 0; column < COLUMNS; column++) {
+      buffer.put(columns[column], 0, columnLengths[column]);
+    }
+    buffer.flip();
+    sealedData = buffer.asReadOnlyBuffer();
+    if (spill != null) {
+      try {
+        spillBlock = spill.store(buffer.array());
+        sealedData = spillBlock.getData();
+      } catch (IOException e) {
+        /* The spill has logged the failure, the bars stay in the heap buffer. */
+        spillBlock = null;
+      }
+    }
+    columns = null;
+  }
+
+  /**
+   * Releases the spilled bars (if any). The chunk must not be used afterwards.
+   */
+  void release() {
+    if (spillBlock != null) {
+      spillBlock.release();
+      spillBlock = null;
+    }
+    sealedData = null;
+    columns = null;
+  }
+
+  /**
+   * Decodes the bars with a start in the range [fromStart, toStart] and passes them to the consumer. The bars are decoded straight from the columns,
+   * no intermediate bar objects are created.
+   *
+   * @param fromStart The min. bar start (epoch second, inclusive).
+   * @param toStart The max. bar start (epoch second, inclusive).
+   * @param consumer The bar consumer.
+   */
+  void scan(long fromStart, long toStart, BarConsumer consumer) {
+    if (!overlaps(fromStart, toStart)) {
+      return;
+    }
+    ByteBuffer[] readers = columnReaders();
+    long[] values = new long[COLUMNS];
+    for (int bar = 0; bar < barCount; bar++) {
+      for (int column = 0; column < COLUMNS; column++) {
+        values[column] += readVarLong(readers[column]);
+      }
+      if (values[START] > toStart) {
+        return;
+      }
+      if (values[START] >= fromStart) {
+        consumer.accept(values[START], values[OPEN], values[HIGH], values[LOW], values[CLOSE], values[COUNT]);
+      }
+    }
+  }
+
+  boolean isEmpty() {
+    return barCount == 0;
+  }
+
+  boolean overlaps(long fromStart, long toStart) {
+    return barCount > 0 && lastStart >= fromStart && firstStart <= toStart;
+  }
+
+  int getBarCount() {
+    return barCount;
+  }
+
+  long getLastStart() {
+    return lastStart;
+  }
+
+  private ByteBuffer[] columnReaders() {
+    ByteBuffer[] readers = new ByteBuffer[COLUMNS];
+    if (columns != null) {
+      for (int column = 0; column < COLUMNS; column++) {
+        readers[column] = ByteBuffer.wrap(columns[column], 0, columnLengths[column]);
+      }
+      return readers;
+    }
+    ByteBuffer data = sealedData.duplicate();
+    int offset = Integer.BYTES * COLUMNS;
+    for (int column = 0; column < COLUMNS; column++) {
+      int length = data.getInt(Integer.BYTES * column);
+      readers[column] = data.duplicate().position(offset).limit(offset + length);
+      offset += length;
+    }
+    return readers;
+  }
+
+  private void writeVarLong(int column, long value) {
+    /* Zig-zag encoding maps small negative deltas to small positive numbers. */
+    long zigZag = (value << 1) ^ (value >> 63);
+    while ((zigZag & ~0x7FL) != 0) {
+      writeByte(column, (byte) ((zigZag & 0x7F) | 0x80));
+      zigZag >>>= 7;
+    }
+    writeByte(column, (byte) zigZag);
+  }
+
+  private void writeByte(int column, byte value) {
+    if (columnLengths[column] == columns[column].length) {
+      columns[column] = Arrays.copyOf(columns[column], columns[column].length * 2);
+    }
+    columns[column][columnLengths[column]++] = value;
+  }
+
+  private static long readVarLong(ByteBuffer reader) {
+    long zigZag = 0L;
+    int shift = 0;
+    byte value;
+    do {
+      value = reader.get();
+      zigZag |= (long) (value & 0x7F) << shift;
+      shift += 7;
+    } while ((value & 0x80) != 0);
+    return (zigZag >>> 1) ^ -(zigZag & 1);
+  }
+
+  /**
+   * Consumes decoded bars without materializing them as objects.
+   */
+  @FunctionalInterface
+  interface BarConsumer {
+
+    /**
+     * Accepts a decoded bar. The prices are unscaled values with {@link BarSeries#PRICE_SCALE} decimal places.
+     *
+     * @param start The bar start (epoch second).
+     * @param open The open price.
+     * @param high The high price.
+     * @param low The low price.
+     * @param close The close price.
+     * @param count The number of ticks.
+     */
+    void accept(long start, long open, long high, long low, long close, long count);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model;
+
+/**
+ * The supported resolutions of the OHLC history bars. Every resolution defines the bar width in seconds and the value that is used in the REST API.
+ */
+public enum BarResolution {
+
+  SECOND("1s", 1L),
+  MINUTE("1m", 60L);
+
+  private final String value;
+  private final long widthSeconds;
+
+  BarResolution(String value, long widthSeconds) {
+    this.value = value;
+    this.widthSeconds = widthSeconds;
+  }
+
+  /**
+   * Returns the REST API value of this resolution (e.g. "1s").
+   *
+   * @return The resolution value.
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * Returns the epoch second at which the bar containing the given epoch second starts.
+   *
+   * @param epochSecond The epoch second.
+   * @return The start epoch second of the bar.
+   */
+  public long getBarStart(long epochSecond) {
+    return epochSecond - Math.floorMod(epochSecond, widthSeconds);
+  }
+
+  /**
+   * Returns the resolution for the given REST API value.
+   *
+   * @param value The resolution value (e.g. "1s" or "1m").
+   * @return The resolution or {@code null} if the value is unknown.
+   */
+  public static BarResolution fromValue(String value) {
+    for (BarResolution resolution : values()) {
+      if (resolution.value.equals(value)) {
+        return resolution;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The OHLC bar history of a single instrument for a single {@link BarResolution}. The bars are stored in {@link BarChunk}s of
+ * {@code CHUNK_CAPACITY} bars, the oldest chunks are dropped when they are older than the retention.
+ *
+ * The bar which is still being rolled up (e.g. the current minute) is kept uncompressed as pending bar and is merged with every new bucket with the
+ * same bar start. It is appended to the current chunk as soon as a bucket with a later bar start arrives. Buckets have to be added in the order of
+ * their epoch seconds, which is the eviction order of the sliding window.
+ */
+class BarSeries {
+
+  static final int CHUNK_CAPACITY = 256;
+  static final int PRICE_SCALE = 2;
+
+  private final HistorySpill spill;
+  private final Deque<BarChunk> sealedChunks = new ArrayDeque<>();
+  private BarChunk currentChunk = new BarChunk();
+  /* The pending bar indexed by the BarChunk column constants, null if there is no pending bar. */
+  private long[] pendingBar;
+
+  BarSeries(HistorySpill spill) {
+    this.spill = spill;
+  }
+
+  /**
+   * Rolls the aggregated values of an evicted bucket into the bar starting at the given epoch second.
+   *
+   * @param barStart The bar start (epoch second).
+   * @param values The aggregated values of the evicted bucket.
+   */
+  void add(long barStart, AggregatedValues values) {
+    long open = toUnscaled(values.getOpenPrice());
+    long high = toUnscaled(values.getMaxPrice());
+    long low = toUnscaled(values.getMinPrice());
+    long close = toUnscaled(values.getClosePrice());
+
+    if (pendingBar != null && pendingBar[BarChunk.START] == barStart) {
+      pendingBar[BarChunk.HIGH] = Math.max(pendingBar[BarChunk.HIGH], high);
+      pendingBar[BarChunk.LOW] = Math.min(pendingBar[BarChunk.LOW], low);
+      pendingBar[BarChunk.CLOSE] = close;
+      pendingBar[BarChunk.COUNT] += values.getCount();
+      return;
+    }
+    if (pendingBar != null && pendingBar[BarChunk.START] > barStart) {
+      /* Out of order buckets can't be merged into the already encoded bars. */
+      return;
+    }
+    flushPendingBar();
+    pendingBar = new long[]{barStart, open, high, low, close, values.getCount()};
+  }
+
+  /**
+   * Drops all bars that started before the given epoch second. Bars are dropped chunk-wise, so a chunk is kept as long as its last bar is inside the
+   * retention.
+   *
+   * @param minStart The min. bar start (epoch second) that is retained.
+   */
+  void evictBefore(long minStart) {
+    while (!sealedChunks.isEmpty() && sealedChunks.peekFirst().getLastStart() < minStart) {
+      sealedChunks.pollFirst().release();
+    }
+    if (sealedChunks.isEmpty() && !currentChunk.isEmpty() && currentChunk.getLastStart() < minStart) {
+      currentChunk = new BarChunk();
+    }
+    if (pendingBar != null && pendingBar[BarChunk.START] < minStart) {
+      pendingBar = null;
+    }
+  }
+
+  /**
+   * Decodes the bars with a start in the range [fromStart, toStart] and passes them in ascending order to the consumer.
+   *
+   * @param fromStart The min. bar start (epoch second, inclusive).
+   * @param toStart The max. bar start (epoch second, inclusive).
+   * @param consumer The bar consumer.
+   */
+  void scan(long fromStart, long toStart, BarChunk.BarConsumer consumer) {
+    for (BarChunk chunk : sealedChunks) {
+      chunk.scan(fromStart, toStart, consumer);
+    }
+    currentChunk.scan(fromStart, toStart, consumer);
+    if (pendingBar != null && pendingBar[BarChunk.START] >= fromStart && pendingBar[BarChunk.START] <= toStart) {
+      consumer.accept(pendingBar[BarChunk.START], pendingBar[BarChunk.OPEN], pendingBar[BarChunk.HIGH], pendingBar[BarChunk.LOW],
+          pendingBar[BarChunk.CLOSE], pendingBar[BarChunk.COUNT]);
+    }
+  }
+
+  /**
+   * Returns an upper bound of the number of bars with a start in the range [fromStart, toStart] without decoding the bars. All bars of the chunks
+   * that overlap the range are counted.
+   *
+   * @param fromStart The min. bar start (epoch second, inclusive).
+   * @param toStart The max. bar start (epoch second, inclusive).
+   * @return The max. number of bars in the range.
+   */
+  int getMaxBarCount(long fromStart, long toStart) {
+    int maxBarCount = 0;
+    for (BarChunk chunk : sealedChunks) {
+      maxBarCount += chunk.overlaps(fromStart, toStart) ? chunk.getBarCount() : 0;
+    }
+    maxBarCount += currentChunk.overlaps(fromStart, toStart) ? currentChunk.getBarCount() : 0;
+    if (pendingBar != null && pendingBar[BarChunk.START] >= fromStart && pendingBar[BarChunk.START] <= toStart) {
+      maxBarCount++;
+    }
+    return maxBarCount;
+  }
+
+  /**
+   * Returns {@code true} if the series doesn't contain any bars.
+   *
+   * @return {@code true} if the series is empty, {@code false} otherwise.
+   */
+  boolean isEmpty() {
+    return pendingBar == null && currentChunk.isEmpty() && sealedChunks.isEmpty();
+  }
+
+  private void flushPendingBar() {
+    if (pendingBar == null) {
+      return;
+    }
+    currentChunk.append(pendingBar);
+    pendingBar = null;
+    if (currentChunk.getBarCount() == CHUNK_CAPACITY) {
+      currentChunk.seal(spill);
+      sealedChunks.addLast(currentChunk);
+      currentChunk = new BarChunk();
+    }
+  }
+
+  static long toUnscaled(BigDecimal price) {
+    return price.setScale(PRICE_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+  }
+
+  static BigDecimal toPrice(long unscaled) {
+    return BigDecimal.valueOf(unscaled, PRICE_SCALE);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Queues expired partial aggregations (buckets) whose per-instrument aggregated values still have to be subtracted from the
+ * {@link TotalAggregation}. With thousands of instruments per bucket, subtracting a whole bucket at once stalls the sliding window, therefore the
+ * instruments are evicted in bounded slices spread over the subsequent operations.
+ *
+ * The buckets are evicted in the order they were added. A single instrument can be evicted ahead of the queue (e.g. before its statistics are
+ * read), the queue then skips that instrument when it reaches it. In both cases the evicted instruments are removed from the bucket.
+ *
+ * This class is not thread-safe, it is guarded by the {@code InstrumentAggregator} lock.
+ */
+public class EvictionQueue {
+
+  private final Deque<PendingEviction> pendingEvictions = new ArrayDeque<>();
+  private int pendingInstruments = 0;
+
+  /**
+   * Adds an expired partial aggregation to the end of the queue.
+   *
+   * @param epochSecond The epoch second in which the expired partial aggregation starts.
+   * @param partialAggregation The expired partial aggregation.
+   */
+  public void add(long epochSecond, PartialAggregation partialAggregation) {
+    Map<String, AggregatedValues> instrumentAggregations = partialAggregation.getAggregatedValuesPerInstrument();
+    if (instrumentAggregations.isEmpty()) {
+      return;
+    }
+    pendingEvictions.addLast(new PendingEviction(epochSecond, instrumentAggregations));
+    pendingInstruments += instrumentAggregations.size();
+  }
+
+  /**
+   * Evicts at most the given number of instruments from the head of the queue.
+   *
+   * @param maxInstruments The max. number of instruments to evict.
+   * @param evictor The evictor that subtracts the instrument aggregated values.
+   * @return The number of evicted instruments.
+   */
+  public int evict(int maxInstruments, InstrumentEvictor evictor) {
+    int evictedInstruments = 0;
+    while (evictedInstruments < maxInstruments && !pendingEvictions.isEmpty()) {
+      PendingEviction pendingEviction = pendingEvictions.peekFirst();
+      if (!pendingEviction.iterator.hasNext()) {
+        pendingEvictions.pollFirst();
+        continue;
+      }
+      Map.Entry<String, AggregatedValues> entry = pendingEviction.iterator.next();
+      pendingEviction.iterator.remove();
+      /* Skip the instruments that were already evicted ahead of the queue. */
+      if (pendingEviction.evictedAheadInstruments.remove(entry.getKey())) {
+        continue;
+      }
+      evictor.evict(pendingEviction.epochSecond, entry.getKey(), entry.getValue());
+      pendingInstruments--;
+      evictedInstruments++;
+    }
+    while (!pendingEvictions.isEmpty() && !pendingEvictions.peekFirst().iterator.hasNext()) {
+      pendingEvictions.pollFirst();
+    }
+    return evictedInstruments;
+  }
+
+  /**
+   * Evicts the given instrument from all queued partial aggregations (in the queue order). The cost is linear in the number of queued partial
+   * aggregations, which is usually zero or one.
+   *
+   * @param instrumentId The instrument identifier.
+   * @param evictor The evictor that subtracts the instrument aggregated values.
+   */
+  public void evictInstrument(String instrumentId, InstrumentEvictor evictor) {
+    for (PendingEviction pendingEviction : pendingEvictions) {
+      AggregatedValues instrumentAggregation = pendingEviction.instrumentAggregations.get(instrumentId);
+      if (instrumentAggregation != null && pendingEviction.evictedAheadInstruments.add(instrumentId)) {
+        evictor.evict(pendingEviction.epochSecond, instrumentId, instrumentAggregation);
+        pendingInstruments--;
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if there are no queued partial aggregations.
+   *
+   * @return {@code true} if the queue is empty, {@code false} otherwise.
+   */
+  public boolean isEmpty() {
+    return pendingEvictions.isEmpty();
+  }
+
+  /**
+   * Returns the number of instruments that still have to be evicted.
+   *
+   * @return The number of pending instruments.
+   */
+  int getPendingInstruments() {
+    return pendingInstruments;
+  }
+
+  /**
+   * Subtracts the aggregated values of an expired instrument aggregation.
+   */
+  @FunctionalInterface
+  public interface InstrumentEvictor {
+
+    /**
+     * Evicts the aggregated values of an instrument.
+     *
+     * @param epochSecond The epoch second in which the expired partial aggregation starts.
+     * @param instrumentId The instrument identifier.
+     * @param instrumentAggregation The expired aggregated values of the instrument.
+     */
+    void evict(long epochSecond, String instrumentId, AggregatedValues instrumentAggregation);
+  }
+
+  private static final class PendingEviction {
+
+    private final long epochSecond;
+    private final Map<String, AggregatedValues> instrumentAggregations;
+    private final Iterator<Map.Entry<String, AggregatedValues>> iterator;
+    /* Instruments evicted ahead of the iterator, they are still contained in the map until the iterator reaches them. */
+    private final Set<String> evictedAheadInstruments = new HashSet<>();
+
+    private PendingEviction(long epochSecond, Map<String, AggregatedValues> instrumentAggregations) {
+      this.epochSecond = epochSecond;
+      this.instrumentAggregations = instrumentAggregations;
+      this.iterator = instrumentAggregations.entrySet().iterator();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spills sealed history chunks into memory-mapped files, so that the retained OHLC history doesn't have to live on the Java heap.
+ *
+ * The chunks are appended to fixed-size regions. Every region is a separate file that is mapped into memory once. A region file is deleted when it is
+ * full and all chunks stored in it have been released (evicted by the retention), therefore the disk usage follows the configured retention. The
+ * region files of an earlier run are deleted when the spill is created, as the history isn't restored from them.
+ *
+ * This class is not thread-safe, it is guarded by the {@link InstrumentHistory} owner.
+ */
+@Slf4j
+class HistorySpill {
+
+  private static final String REGION_FILE_GLOB = "history-*.bin";
+
+  private final Path directory;
+  private final int regionSize;
+  private Region currentRegion;
+  private long regionSequence = 0L;
+  /* Set after a failed store, so that a persistent failure (e.g. a full disk) is only logged once until the spill works again. */
+  private boolean failing = false;
+
+  /**
+   * Creates the spill directory (if necessary) and deletes the region files of an earlier run.
+   *
+   * @param directory The directory for the region files.
+   * @param regionSize The size of a region file in bytes.
+   * @throws IllegalArgumentException If the directory can't be created, isn't writable or the region files of an earlier run can't be deleted.
+   */
+  HistorySpill(Path directory, int regionSize) {
+    try {
+      Files.createDirectories(directory);
+      if (!Files.isWritable(directory)) {
+        throw new IllegalArgumentException("The history spill directory is not writable: " + directory);
+      }
+      try (DirectoryStream<Path> staleRegions = Files.newDirectoryStream(directory, REGION_FILE_GLOB)) {
+        for (Path staleRegion : staleRegions) {
+          Files.delete(staleRegion);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("The history spill directory can't be used: " + directory, e);
+    }
+    this.directory = directory;
+    this.regionSize = regionSize;
+  }
+
+  /**
+   * Copies the given bytes into the current region and returns the stored block. A new region is mapped if the current region is full. A failure is
+   * logged once, until a chunk has been stored again.
+   *
+   * @param bytes The encoded chunk.
+   * @return The stored block.
+   * @throws IOException If the region file couldn't be created or mapped.
+   */
+  Block store(byte[] bytes) throws IOException {
+    try {
+      Block block = storeInRegion(bytes);
+      if (failing) {
+        log.info("History chunks are spilled into {} again", directory);
+        failing = false;
+      }
+      return block;
+    } catch (IOException e) {
+      if (!failing) {
+        log.warn("Failed to spill a history chunk into {}, the history chunks are kept on the heap", directory, e);
+        failing = true;
+      }
+      throw e;
+    }
+  }
+
+  private Block storeInRegion(byte[] bytes) throws IOException {
+    if (bytes.length > regionSize) {
+      throw new IOException("Chunk of " + bytes.length + " bytes exceeds the region size of " + regionSize + " bytes");
+    }
+    if (currentRegion == null || currentRegion.buffer.remaining() < bytes.length) {
+      if (currentRegion != null) {
+        currentRegion.seal();
+        currentRegion = null;
+      }
+      currentRegion = mapRegion();
+    }
+    ByteBuffer data = currentRegion.buffer.slice().limit(bytes.length);
+    currentRegion.buffer.put(bytes);
+    currentRegion.liveBlocks++;
+    return new Block(currentRegion, data.asReadOnlyBuffer());
+  }
+
+  private Region mapRegion() throws IOException {
+    Files.createDirectories(directory);
+    Path file = directory.resolve("history-" + regionSequence++ + ".bin");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      /* The mapping stays valid after the channel has been closed. */
+      return new Region(file, channel.map(MapMode.READ_WRITE, 0, regionSize));
+    }
+  }
+
+  /**
+   * A chunk stored in a region.
+   */
+  static final class Block {
+
+    private final Region region;
+    private final ByteBuffer data;
+
+    private Block(Region region, ByteBuffer data) {
+      this.region = region;
+      this.data = data;
+    }
+
+    /**
+     * Returns the read-only view of the stored bytes.
+     *
+     * @return The stored bytes.
+     */
+    ByteBuffer getData() {
+      return data;
+    }
+
+    /**
+     * Releases the block. The region file is deleted as soon as the region is full and all its blocks have been released.
+     */
+    void release() {
+      region.liveBlocks--;
+      region.deleteIfUnused();
+    }
+  }
+
+  private static final class Region {
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private int liveBlocks = 0;
+    private boolean sealed = false;
+
+    private Region(Path file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    private void seal() {
+      sealed = true;
+      deleteIfUnused();
+    }
+
+    private void deleteIfUnused() {
+      if (!sealed || liveBlocks > 0) {
+        return;
+      }
+      try {
+        /* The mapping itself is released by the garbage collector. */
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        file.toFile().deleteOnExit();
+      }
+    }
+  }
+}
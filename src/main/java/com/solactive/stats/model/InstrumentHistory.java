@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model;
+
+import com.solactive.stats.generated.openapi.model.StatisticsHistory;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retains the per-instrument OHLC (open, high, low, close, count) history of the evicted partial aggregations (buckets). Every evicted bucket is
+ * rolled into a bar of every {@link BarResolution} (1s and 1m).
+ *
+ * The bars are stored in a compact columnar, delta-encoded format (see {@link BarChunk}). Full chunks are kept on the heap or, if a spill directory
+ * is configured, in memory-mapped files. Bars older than the retention of their resolution are dropped.
+ */
+public class InstrumentHistory {
+
+  static final int SPILL_REGION_SIZE = 16 * 1024 * 1024;
+
+  private final Map<BarResolution, Long> retentionSeconds = new EnumMap<>(BarResolution.class);
+  private final Map<BarResolution, Map<String, BarSeries>> series = new EnumMap<>(BarResolution.class);
+  private final HistorySpill spill;
+  private long latestEpochSecond = Long.MIN_VALUE;
+  private long nextEvictionEpochSecond = Long.MIN_VALUE;
+
+  /**
+   * Creates an empty history. The spill files of an earlier run are deleted from the spill directory.
+   *
+   * @param secondBarsRetentionSeconds The retention of the 1s bars in seconds.
+   * @param minuteBarsRetentionSeconds The retention of the 1m bars in seconds.
+   * @param spillDirectory The directory for the memory-mapped spill files, {@code null} to keep the history on the heap.
+   * @throws IllegalArgumentException If the spill directory can't be created or isn't writable.
+   */
+  public InstrumentHistory(long secondBarsRetentionSeconds, long minuteBarsRetentionSeconds, Path spillDirectory) {
+    retentionSeconds.put(BarResolution.SECOND, secondBarsRetentionSeconds);
+    retentionSeconds.put(BarResolution.MINUTE, minuteBarsRetentionSeconds);
+    for (BarResolution resolution : BarResolution.values()) {
+      series.put(resolution, new HashMap<>(20_000));
+    }
+    this.spill = spillDirectory == null ? null : new HistorySpill(spillDirectory, SPILL_REGION_SIZE);
+  }
+
+  /**
+   * Rolls the aggregated values of an instrument of an evicted partial aggregation into the bars of all resolutions. The values of an instrument have
+   * to be added in the order of their epoch seconds. Several partial aggregations with the same epoch second (sub-second buckets) are merged into the
+   * same bars.
+   *
+   * @param epochSecond The epoch second in which the evicted partial aggregation starts.
+   * @param instrumentId The instrument identifier.
+   * @param instrumentAggregation The evicted aggregated values of the instrument.
+   */
+  public void addInstrumentAggregation(long epochSecond, String instrumentId, AggregatedValues instrumentAggregation) {
+    for (BarResolution resolution : BarResolution.values()) {
+      series.get(resolution).computeIfAbsent(instrumentId, instrument -> new BarSeries(spill))
+          .add(resolution.getBarStart(epochSecond), instrumentAggregation);
+    }
+    latestEpochSecond = Math.max(latestEpochSecond, epochSecond);
+  }
+
+  /**
+   * Drops the bars outside the retention, relative to the latest added epoch second. The bars are only checked once per minute, further calls within
+   * the same minute are a noop.
+   */
+  public void evictExpired() {
+    if (latestEpochSecond == Long.MIN_VALUE || latestEpochSecond < nextEvictionEpochSecond) {
+      return;
+    }
+    for (BarResolution resolution : BarResolution.values()) {
+      long minStart = latestEpochSecond - retentionSeconds.get(resolution);
+      Iterator<BarSeries> iterator = series.get(resolution).values().iterator();
+      while (iterator.hasNext()) {
+        BarSeries instrumentSeries = iterator.next();
+        instrumentSeries.evictBefore(minStart);
+        if (instrumentSeries.isEmpty()) {
+          iterator.remove();
+        }
+      }
+    }
+    nextEvictionEpochSecond = BarResolution.MINUTE.getBarStart(latestEpochSecond) + 60L;
+  }
+
+  /**
+   * Returns the bars of the given instrument and resolution that start in the range [from, to]. The bars are decoded straight from the encoded
+   * columns into the response columns, which are pre-sized to the number of bars in the chunks overlapping the range. The response model boxes the
+   * timestamps and counts and creates a {@link BigDecimal} for every price.
+   *
+   * @param instrumentId The instrument identifier.
+   * @param from The min. bar start in milliseconds (inclusive).
+   * @param to The max. bar start in milliseconds (inclusive).
+   * @param resolution The bar resolution.
+   * @return The history columns, empty if there are no bars in the given range.
+   */
+  public StatisticsHistory getHistoryForInstrument(String instrumentId, long from, long to, BarResolution resolution) {
+    BarSeries instrumentSeries = series.get(resolution).get(instrumentId);
+    long fromStart = Math.floorDiv(from, 1000L);
+    long toStart = Math.floorDiv(to, 1000L);
+    int maxBarCount = instrumentSeries == null ? 0 : instrumentSeries.getMaxBarCount(fromStart, toStart);
+    List<Long> timestamps = new ArrayList<>(maxBarCount);
+    List<BigDecimal> open = new ArrayList<>(maxBarCount);
+    List<BigDecimal> high = new ArrayList<>(maxBarCount);
+    List<BigDecimal> low = new ArrayList<>(maxBarCount);
+    List<BigDecimal> close = new ArrayList<>(maxBarCount);
+    List<Long> count = new ArrayList<>(maxBarCount);
+
+    if (instrumentSeries != null) {
+      instrumentSeries.scan(fromStart, toStart, (start, o, h, l, c, n) -> {
+        if (start * 1000L < from) {
+          return;
+        }
+        timestamps.add(start * 1000L);
+        open.add(BarSeries.toPrice(o));
+        high.add(BarSeries.toPrice(h));
+        low.add(BarSeries.toPrice(l));
+        close.add(BarSeries.toPrice(c));
+        count.add(n);
+      });
+    }
+
+    return new StatisticsHistory()
+        .instrument(instrumentId)
+        .resolution(resolution.getValue())
+        .timestamps(timestamps)
+        .open(open)
+        .high(high)
+        .low(low)
+        .close(close)
+        .count(count);
+  }
+
+}
@@ -21,7 +21,10 @@ import java.util.Map;
 import lombok.NoArgsConstructor;
 
 /**
- * A partial aggregation stores aggregated values for a given epoch second (bucket).
+ * A partial aggregation stores aggregated values for a given bucket (e.g. an epoch second).
+ *
+ * The instrument map is not pre-sized, as the sliding window may hold hundreds of buckets and most of them only contain a fraction of all
+ * instruments.
  */
 @NoArgsConstructor
 public class PartialAggregation {
@@ -29,7 +32,7 @@ public class PartialAggregation {
   /* The aggregated values for all known instruments. */
   private final AggregatedValues aggregatedValues = new AggregatedValues();
   /* The aggregated values per instrument. */
-  private final Map<String, AggregatedValues> instrumentAggregations = new HashMap<>(20_000);
+  private final Map<String, AggregatedValues> instrumentAggregations = new HashMap<>();
 
   /**
    * Updates the aggregated values (for the tick instrument and all known instruments) with the given tick.
@@ -38,11 +41,23 @@ public class PartialAggregation {
    */
   public void updateValues(final Tick tick) {
     aggregatedValues.updateValues(tick.getPrice());
-    instrumentAggregations.computeIfAbsent(tick.getInstrument(), instrument -> new AggregatedValues()).updateValues(tick.getPrice());
+    instrumentAggregations.computeIfAbsent(tick.getInstrument(), instrument -> new AggregatedValues())
+        .updateValues(tick.getPrice(), tick.getTimestamp());
+  }
+
+  /**
+   * Merges another partial aggregation of the same bucket into this partial aggregation.
+   *
+   * @param otherAggregation The partial aggregation that will be merged.
+   */
+  void merge(PartialAggregation otherAggregation) {
+    aggregatedValues.merge(otherAggregation.aggregatedValues);
+    otherAggregation.instrumentAggregations.forEach((instrument, instAgg) ->
+        instrumentAggregations.computeIfAbsent(instrument, inst -> new AggregatedValues()).merge(instAgg));
   }
 
   /**
-   * Returns the aggregated values for the current epoch second.
+   * Returns the aggregated values for the current bucket.
    *
    * @return The aggregated values (min, max, sum, count).
    */
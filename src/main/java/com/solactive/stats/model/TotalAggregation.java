@@ -19,13 +19,11 @@ import com.solactive.stats.generated.openapi.model.Statistics;
 import com.solactive.stats.generated.openapi.model.Tick;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import lombok.NoArgsConstructor;
+import org.apache.commons.collections4.SortedBag;
+import org.apache.commons.collections4.bag.TreeBag;
 
 /**
  * Stores aggregated values for the last WINDOW_SIZE (e.g. 60) seconds. It stores aggregated values for all known instruments and the aggregated
@@ -39,69 +37,99 @@ public class TotalAggregation {
   /* The aggregated values per instrument. */
   private final Map<String, AggregatedValues> instrumentAggregations = new HashMap<>(20_000);
 
-  /* Contains the min and max prices for all partial aggregations (a given epoch second).
-   * This set will not have more than WINDOW_SIZE * 2 elements (min & max). */
-  private final SortedSet<BigDecimal> allPrices = new TreeSet<>();
+  /* Contains the min and max prices for all partial aggregations (buckets), every bucket contributes exactly one copy of its min and max price.
+   * The bag counts the copies, as several buckets can have the same min or max price. It will not have more than BUCKET_COUNT * 2 elements. */
+  private final SortedBag<BigDecimal> allPrices = new TreeBag<>();
   /* Stores the min and max prices for each instrument.
-   * Again each entry value (sorted set) will never have more than WINDOW_SIZE * 2 elements (min & max). */
-  private final Map<String, SortedSet<BigDecimal>> instrumentPrices = new HashMap<>(20_000);
+   * Again each entry value (sorted bag) will never have more than BUCKET_COUNT * 2 elements (min & max). */
+  private final Map<String, SortedBag<BigDecimal>> instrumentPrices = new HashMap<>(20_000);
 
   /**
-   * Updates the aggregated values (for the tick instrument and all known instruments) with the given tick. The passed partial aggregation, is the
-   * bucket (epoch second) in which the tick will be aggregated. The min/max price of the partial aggregation will also be stored.
+   * Aggregates the tick in the given partial aggregation (bucket) and updates the aggregated values (for the tick instrument and all known
+   * instruments). The previous min/max price of the partial aggregation is replaced by its new min/max price.
    *
    * @param tick The tick.
-   * @param partialAggregation The partial aggregation in which the tick was aggregated.
+   * @param partialAggregation The partial aggregation in which the tick will be aggregated.
    */
   public void updateValues(Tick tick, PartialAggregation partialAggregation) {
-    aggregatedValues.updateValues(tick.getPrice());
-    allPrices.add(partialAggregation.getAggregatedValues().getMinPrice());
-    allPrices.add(partialAggregation.getAggregatedValues().getMaxPrice());
-
     final String instrument = tick.getInstrument();
+    SortedBag<BigDecimal> instPrices = instrumentPrices.computeIfAbsent(instrument, inst -> new TreeBag<>());
+    removePrices(allPrices, partialAggregation.getAggregatedValues());
+    removePrices(instPrices, partialAggregation.getAggregatedValuesForInstrument(instrument));
+
+    partialAggregation.updateValues(tick);
+    aggregatedValues.updateValues(tick.getPrice());
     instrumentAggregations.computeIfAbsent(instrument, inst -> new AggregatedValues()).updateValues(tick.getPrice());
-    Set<BigDecimal> instPrices = instrumentPrices.computeIfAbsent(instrument, inst -> new TreeSet<>());
-    instPrices.add(partialAggregation.getAggregatedValuesForInstrument(instrument).getMinPrice());
-    instPrices.add(partialAggregation.getAggregatedValuesForInstrument(instrument).getMaxPrice());
+
+    addPrices(allPrices, partialAggregation.getAggregatedValues());
+    addPrices(instPrices, partialAggregation.getAggregatedValuesForInstrument(instrument));
+  }
+
+  /**
+   * Merges a partial aggregation into another partial aggregation of the same bucket, both have been recorded with
+   * {@link #updateValues(Tick, PartialAggregation)}. The aggregated values don't change, only the min/max prices of both partial aggregations are
+   * replaced by the min/max prices of the merged partial aggregation.
+   *
+   * @param partialAggregation The partial aggregation that is kept.
+   * @param mergedAggregation The partial aggregation that is merged into the kept partial aggregation and discarded afterwards.
+   */
+  public void mergePartialAggregation(PartialAggregation partialAggregation, PartialAggregation mergedAggregation) {
+    if (mergedAggregation.getAggregatedValues().isBlank()) {
+      return;
+    }
+    removePrices(allPrices, partialAggregation.getAggregatedValues());
+    removePrices(allPrices, mergedAggregation.getAggregatedValues());
+    mergedAggregation.getAggregatedValuesPerInstrument().forEach((instrument, instAgg) -> {
+      removePrices(instrumentPrices.get(instrument), partialAggregation.getAggregatedValuesForInstrument(instrument));
+      removePrices(instrumentPrices.get(instrument), instAgg);
+    });
+
+    partialAggregation.merge(mergedAggregation);
+
+    addPrices(allPrices, partialAggregation.getAggregatedValues());
+    mergedAggregation.getAggregatedValuesPerInstrument().keySet().forEach(instrument ->
+        addPrices(instrumentPrices.get(instrument), partialAggregation.getAggregatedValuesForInstrument(instrument)));
   }
 
   /**
-   * Subtracts an expired (older than WINDOW_SIZE (e.g. 60) seconds) partial aggregation from the total aggregations. Subtracts the aggregated values
-   * (sum, count) and sets the new min & max price (overall/instrument) from the residual min/max prices.
+   * Subtracts the aggregated values for all known instruments of an expired partial aggregation, but not the per instrument aggregated values. The
+   * per instrument aggregated values have to be subtracted with {@link #removeInstrumentAggregation(String, AggregatedValues)}, which allows the
+   * caller to spread the eviction of a bucket with many instruments over several steps (see {@link EvictionQueue}).
    *
    * @param partialAggregation The expired partial aggregation.
    */
-  public void removePartialAggregation(PartialAggregation partialAggregation) {
+  public void removeAggregatedValues(PartialAggregation partialAggregation) {
     /* Skip an empty partial aggregations. */
     if (partialAggregation.getAggregatedValues().isBlank()) {
       return;
     }
 
-    allPrices.remove(partialAggregation.getAggregatedValues().getMinPrice());
-    allPrices.remove(partialAggregation.getAggregatedValues().getMaxPrice());
+    removePrices(allPrices, partialAggregation.getAggregatedValues());
     BigDecimal minTickPrice = allPrices.isEmpty() ? getZeroBigDecimalScaled() : allPrices.first();
     BigDecimal maxTickPrice = allPrices.isEmpty() ? getZeroBigDecimalScaled() : allPrices.last();
     aggregatedValues.subtractPartialAggregation(partialAggregation.getAggregatedValues(), minTickPrice, maxTickPrice);
+  }
 
-    /* Subtract instrument aggregations. */
-    partialAggregation.getAggregatedValuesPerInstrument().entrySet().stream().forEach(entry -> {
-      String instrumentId = entry.getKey();
-      AggregatedValues instAgg = entry.getValue();
-
-      instrumentPrices.get(instrumentId).removeAll(Arrays.asList(instAgg.getMinPrice(), instAgg.getMaxPrice()));
-      BigDecimal minTickPriceInstrument = instrumentPrices.get(instrumentId).isEmpty() ?
-          getZeroBigDecimalScaled() : instrumentPrices.get(instrumentId).first();
-      BigDecimal maxTickPriceInstrument = instrumentPrices.get(instrumentId).isEmpty() ?
-          getZeroBigDecimalScaled() : instrumentPrices.get(instrumentId).last();
-      instrumentAggregations.get(instrumentId).subtractPartialAggregation(instAgg, minTickPriceInstrument, maxTickPriceInstrument);
-
-      if (instrumentPrices.get(instrumentId).isEmpty()) {
-        instrumentPrices.remove(instrumentId);
-      }
-      if (instrumentAggregations.get(instrumentId).isBlank()) {
-        instrumentAggregations.remove(instrumentId);
-      }
-    });
+  /**
+   * Subtracts the aggregated values of a single instrument of an expired partial aggregation.
+   *
+   * @param instrumentId The instrument identifier.
+   * @param instAgg The expired aggregated values of the instrument.
+   */
+  public void removeInstrumentAggregation(String instrumentId, AggregatedValues instAgg) {
+    removePrices(instrumentPrices.get(instrumentId), instAgg);
+    BigDecimal minTickPriceInstrument = instrumentPrices.get(instrumentId).isEmpty() ?
+        getZeroBigDecimalScaled() : instrumentPrices.get(instrumentId).first();
+    BigDecimal maxTickPriceInstrument = instrumentPrices.get(instrumentId).isEmpty() ?
+        getZeroBigDecimalScaled() : instrumentPrices.get(instrumentId).last();
+    instrumentAggregations.get(instrumentId).subtractPartialAggregation(instAgg, minTickPriceInstrument, maxTickPriceInstrument);
+
+    if (instrumentPrices.get(instrumentId).isEmpty()) {
+      instrumentPrices.remove(instrumentId);
+    }
+    if (instrumentAggregations.get(instrumentId).isBlank()) {
+      instrumentAggregations.remove(instrumentId);
+    }
   }
 
   /**
@@ -135,6 +163,21 @@ public class TotalAggregation {
     return new Statistics().avg(getZeroBigDecimalScaled()).max(getZeroBigDecimalScaled()).min(getZeroBigDecimalScaled()).count(0L);
   }
 
+  private void addPrices(SortedBag<BigDecimal> prices, AggregatedValues partialAggregatedValues) {
+    prices.add(partialAggregatedValues.getMinPrice());
+    prices.add(partialAggregatedValues.getMaxPrice());
+  }
+
+  private void removePrices(SortedBag<BigDecimal> prices, AggregatedValues partialAggregatedValues) {
+    /* An empty partial aggregation hasn't contributed any prices. */
+    if (partialAggregatedValues.isBlank()) {
+      return;
+    }
+    /* Bag.remove(Object) would remove all copies. */
+    prices.remove(partialAggregatedValues.getMinPrice(), 1);
+    prices.remove(partialAggregatedValues.getMaxPrice(), 1);
+  }
+
   private BigDecimal getZeroBigDecimalScaled() {
     return BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
   }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.service;
+
+import com.solactive.stats.generated.openapi.model.StatisticsHistory;
+import com.solactive.stats.model.AggregatedValues;
+import com.solactive.stats.model.BarResolution;
+import com.solactive.stats.model.InstrumentHistory;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rolls the instrument aggregations of the partial aggregations (buckets) evicted by the {@link InstrumentAggregator} into the per-instrument OHLC
+ * history and serves range scans over the history.
+ *
+ * The evicted instrument aggregations are handed over through a lock-free queue and are rolled into the history outside the
+ * {@link InstrumentAggregator} lock, by the {@link SlidingWindowService} and before every history query. The recording of ticks therefore never
+ * waits for the history lock, which is held while a history query decodes the bars.
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_SINGLETON)
+public class HistoryAggregator {
+
+  private final InstrumentHistory instrumentHistory;
+  /* The evicted instrument aggregations that are not yet rolled into the history, in the order of their eviction. */
+  private final Queue<EvictedAggregation> pendingRollups = new ConcurrentLinkedQueue<>();
+
+  @Autowired
+  public HistoryAggregator(@Value("${history.secondBars.retentionInSeconds}") long secondBarsRetentionSeconds,
+      @Value("${history.minuteBars.retentionInSeconds}") long minuteBarsRetentionSeconds,
+      @Value("${history.spillDirectory:}") String spillDirectory) {
+    this.instrumentHistory = new InstrumentHistory(secondBarsRetentionSeconds, minuteBarsRetentionSeconds,
+        spillDirectory.isBlank() ? null : Paths.get(spillDirectory));
+  }
+
+  /**
+   * Queues the aggregated values of an instrument of an evicted partial aggregation for the rollup into the OHLC history. This method doesn't acquire
+   * the history lock, it is called by the {@link InstrumentAggregator} while holding its own lock.
+   *
+   * @param epochSecond The epoch second in which the evicted partial aggregation starts.
+   * @param instrumentId The instrument identifier.
+   * @param instrumentAggregation The evicted aggregated values of the instrument.
+   */
+  void rollup(long epochSecond, String instrumentId, AggregatedValues instrumentAggregation) {
+    pendingRollups.add(new EvictedAggregation(epochSecond, instrumentId, instrumentAggregation));
+  }
+
+  /**
+   * Rolls the queued instrument aggregations into the OHLC history. This method is called by the {@link SlidingWindowService}, outside of the
+   * {@link InstrumentAggregator} lock.
+   */
+  synchronized void rollupPending() {
+    EvictedAggregation evictedAggregation;
+    while ((evictedAggregation = pendingRollups.poll()) != null) {
+      instrumentHistory.addInstrumentAggregation(evictedAggregation.epochSecond, evictedAggregation.instrumentId,
+          evictedAggregation.instrumentAggregation);
+    }
+  }
+
+  /**
+   * Drops the OHLC history bars outside the retention. This method is called by the {@link SlidingWindowService}, outside of the
+   * {@link InstrumentAggregator} lock.
+   */
+  synchronized void evictExpired() {
+    instrumentHistory.evictExpired();
+  }
+
+  /**
+   * Returns the OHLC history bars of the given instrument that start in the range [from, to]. The queued instrument aggregations are rolled into the
+   * history first.
+   *
+   * @param instrumentId The instrument identifier.
+   * @param from The min. bar start in milliseconds (inclusive).
+   * @param to The max. bar start in milliseconds (inclusive).
+   * @param resolution The bar resolution.
+   * @return The OHLC history of the given instrument.
+   */
+  synchronized StatisticsHistory getHistoryForInstrument(String instrumentId, long from, long to, BarResolution resolution) {
+    rollupPending();
+    return instrumentHistory.getHistoryForInstrument(instrumentId, from, to, resolution);
+  }
+
+  private static final class EvictedAggregation {
+
+    private final long epochSecond;
+    private final String instrumentId;
+    private final AggregatedValues instrumentAggregation;
+
+    private EvictedAggregation(long epochSecond, String instrumentId, AggregatedValues instrumentAggregation) {
+      this.epochSecond = epochSecond;
+      this.instrumentId = instrumentId;
+      this.instrumentAggregation = instrumentAggregation;
+    }
+  }
+}
@@ -17,12 +17,16 @@ package com.solactive.stats.service;
 
 import com.solactive.stats.generated.openapi.model.Statistics;
 import com.solactive.stats.generated.openapi.model.Tick;
+import com.solactive.stats.model.AggregatedValues;
+import com.solactive.stats.model.EvictionQueue;
 import com.solactive.stats.model.PartialAggregation;
 import com.solactive.stats.model.TotalAggregation;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.SortedMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
 import javax.validation.ClockProvider;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -34,33 +38,83 @@ import org.springframework.stereotype.Component;
 /**
  * Aggregates ticks for the last {@code WINDOW_SIZE} seconds and provides statistics for all instruments and for each instrument individually.
  *
- * The sliding time window is implemented as sorted map of epoch seconds to partial aggregations (buckets). Every bucket aggregates all ticks that
- * have their timestamp in a certain epoch second.
+ * The sliding time window is split into buckets of {@code BUCKET_WIDTH} milliseconds (e.g. 1000, 250 or 100). Every bucket (partial aggregation)
+ * aggregates all ticks that have their timestamp in a certain bucket, where the bucket number is the epoch millisecond divided by the bucket width.
+ * A smaller bucket width moves the window edge more precisely, a tick is at most {@code BUCKET_WIDTH} milliseconds older than the window when it is
+ * evicted.
+ *
+ * The buckets are stored in a circular buffer with a fixed size of {@code WINDOW_SIZE / BUCKET_WIDTH + 1} slots, the slot of a bucket is the bucket
+ * number modulo the buffer size. Recording a tick and evicting a bucket are therefore O(1) regardless of the number of buckets per window. The
+ * buffer only holds the buckets up to the current bucket, the buckets of ticks with a timestamp in the future (e.g. due to clock skew) are kept
+ * in a separate sorted map and moved into the buffer once they become the current bucket. A future bucket therefore never takes the slot of a
+ * bucket inside the window and is evicted (and rolled into the history) in the order of its bucket number. The current bucket never moves
+ * backwards, if the clock steps back the window stays at the latest current bucket until the clock catches up.
  *
  * The sliding window doesn't store each tick individually and incrementally updates the partial aggregations (buckets) and the total aggregation.
  * When the oldest bucket is removed/evicted, the aggregated values of that bucket are subtracted from the total aggregation. This sliding window
  * aggregation algorithm is called Subtract-on-Evict.
  *
+ * The eviction is incremental: the aggregated values for all instruments of an expired bucket are subtracted immediately, the per instrument
+ * aggregated values are queued in the {@link EvictionQueue} and subtracted in slices of at most {@code EVICTION_SLICE_SIZE} instruments by every
+ * recorded tick and by the {@link SlidingWindowService}. Before the statistics of an instrument are returned, the instrument is evicted from all
+ * queued buckets, therefore the statistics never contain expired ticks.
+ *
  * As all values are pre-aggregated the time for retrieving a {@link Statistics} object for all instruments or a given instrument is constant O(1).
- * The space requirement of the sliding window will be O(WINDOW_SIZE) for the partial aggregations and O(1) for the total aggregation.
+ * The space requirement of the sliding window will be O(WINDOW_SIZE / BUCKET_WIDTH) for the partial aggregations and O(1) for the total
+ * aggregation.
+ *
+ * Evicted partial aggregations are not discarded, they are handed over to the {@link HistoryAggregator}, which rolls them into the OHLC history
+ * outside of this lock.
  */
 @Component
 @Scope(ConfigurableBeanFactory.SCOPE_SINGLETON)
 public class InstrumentAggregator {
 
+  private static final long NO_BUCKET = Long.MIN_VALUE;
+
   private final Clock clock;
   private final int windowSizeSeconds;
+  private final int bucketWidthMillis;
+  /* The number of buckets that are entirely covered by the window, the current (partially elapsed) bucket is not counted. */
+  private final long windowBuckets;
+  private final int evictionSliceSize;
   private final TotalAggregation totalAggregation = new TotalAggregation();
-  private final SortedMap<Long, PartialAggregation> partialAggregations = new TreeMap<>();
+  private final EvictionQueue evictionQueue = new EvictionQueue();
+  /* Circular buffer of the partial aggregations and their bucket numbers (NO_BUCKET for empty slots). */
+  private final PartialAggregation[] partialAggregations;
+  private final long[] bucketNumbers;
+  /* The partial aggregations of the buckets after the current bucket, sorted by bucket number. */
+  private final TreeMap<Long, PartialAggregation> futureAggregations = new TreeMap<>();
+  /* All buckets before this bucket number have already been evicted. */
+  private long nextEvictedBucket = NO_BUCKET;
+  /* The latest current bucket, the window is not moved backwards if the clock steps back. */
+  private long latestBucket = NO_BUCKET;
+  private final HistoryAggregator historyAggregator;
 
   @Autowired
-  public InstrumentAggregator(ClockProvider clockProvider, @Value("${slidingWindow.sizeInSeconds}") int windowSizeSeconds) {
+  public InstrumentAggregator(ClockProvider clockProvider, @Value("${slidingWindow.sizeInSeconds}") int windowSizeSeconds,
+      @Value("${slidingWindow.bucketWidthInMillis}") int bucketWidthMillis, @Value("${slidingWindow.evictionSliceSize}") int evictionSliceSize,
+      HistoryAggregator historyAggregator) {
+    if (bucketWidthMillis <= 0 || 1000 % bucketWidthMillis != 0) {
+      throw new IllegalArgumentException("The bucket width must be a divisor of 1000 milliseconds: " + bucketWidthMillis);
+    }
+    if (evictionSliceSize <= 0) {
+      throw new IllegalArgumentException("The eviction slice size must be positive: " + evictionSliceSize);
+    }
     this.clock = clockProvider.getClock();
     this.windowSizeSeconds = windowSizeSeconds;
+    this.bucketWidthMillis = bucketWidthMillis;
+    this.windowBuckets = windowSizeSeconds * 1000L / bucketWidthMillis;
+    this.evictionSliceSize = evictionSliceSize;
+    this.partialAggregations = new PartialAggregation[Math.toIntExact(windowBuckets + 1)];
+    this.bucketNumbers = new long[partialAggregations.length];
+    Arrays.fill(bucketNumbers, NO_BUCKET);
+    this.historyAggregator = historyAggregator;
   }
 
   /**
-   * Checks if the tick is valid and records it in the total and partial aggregations (epoch second bucket).
+   * Checks if the tick is valid and records it in the total and partial aggregations (bucket). A tick with a timestamp after the current bucket is
+   * recorded in a future bucket. Afterwards a slice of the queued expired instrument aggregations is evicted.
    *
    * @param tick The tick to be recorded.
    */
@@ -68,11 +122,28 @@ public class InstrumentAggregator {
     if (!isTickValid(tick)) {
       return;
     }
-    moveWindow();
-    long tickEpochSecond = Instant.ofEpochMilli(tick.getTimestamp()).getEpochSecond();
-    PartialAggregation partialAggregation = partialAggregations.computeIfAbsent(tickEpochSecond, epochSecond -> new PartialAggregation());
-    partialAggregation.updateValues(tick);
+    long currentBucket = getCurrentBucket();
+    moveWindow(currentBucket);
+    long tickBucket = Math.floorDiv(tick.getTimestamp(), (long) bucketWidthMillis);
+    if (tickBucket < nextEvictedBucket) {
+      /* The tick expired while the window was moved, or it is older than the window of the latest current bucket (the clock stepped back). */
+      return;
+    }
+    PartialAggregation partialAggregation;
+    if (tickBucket > currentBucket) {
+      partialAggregation = futureAggregations.computeIfAbsent(tickBucket, bucket -> new PartialAggregation());
+    } else {
+      int slot = getSlot(tickBucket);
+      if (bucketNumbers[slot] != tickBucket) {
+        /* The buckets inside the window [current - WINDOW_BUCKETS, current] have distinct slots, the slot is empty or holds an expired bucket. */
+        evict(slot);
+        partialAggregations[slot] = new PartialAggregation();
+        bucketNumbers[slot] = tickBucket;
+      }
+      partialAggregation = partialAggregations[slot];
+    }
     totalAggregation.updateValues(tick, partialAggregation);
+    evictionQueue.evict(evictionSliceSize, this::evictInstrumentAggregation);
   }
 
   /**
@@ -93,27 +164,33 @@ public class InstrumentAggregator {
    */
   synchronized Statistics getStatisticsForInstrument(String instrumentId) {
     moveWindow();
+    evictionQueue.evictInstrument(instrumentId, this::evictInstrumentAggregation);
     return totalAggregation.getStatisticsForInstrument(instrumentId);
   }
 
   /**
-   * Moves the sliding window to the current epoch second and removes all partial aggregations that are not inside the sliding window. This method is
-   * called by the {@link SlidingWindowService} every second, because if there are no new ticks for a certain time the list of partial aggregations
-   * will not be up-to-date and will contain expired partial aggregations.
+   * Moves the sliding window to the current bucket and removes all partial aggregations that are not inside the sliding window. This method is
+   * called by the {@link SlidingWindowService} every BUCKET_WIDTH milliseconds, because if there are no new ticks for a certain time the list of
+   * partial aggregations will not be up-to-date and will contain expired partial aggregations. The per instrument aggregated values of the removed
+   * partial aggregations are queued for the incremental eviction.
+   *
+   * Only the slots of the buckets that expired since the last call are visited, at most the whole circular buffer once. Afterwards the future buckets
+   * that are not in the future anymore are moved into the circular buffer (merged with a bucket of the same number), or evicted if they already
+   * expired.
    */
   synchronized void moveWindow() {
-    if (partialAggregations.isEmpty()) {
-      return;
-    }
-    long currentEpochSecond = clock.instant().getEpochSecond();
-    long minusWindow = currentEpochSecond - windowSizeSeconds;
-    long oldEpochSecond = partialAggregations.firstKey();
-    while (oldEpochSecond < minusWindow) {
-      if (partialAggregations.containsKey(oldEpochSecond)) {
-        totalAggregation.removePartialAggregation(partialAggregations.remove(oldEpochSecond));
-      }
-      oldEpochSecond++;
-    }
+    moveWindow(getCurrentBucket());
+  }
+
+  /**
+   * Evicts a slice of at most EVICTION_SLICE_SIZE queued expired instrument aggregations. This method is called repeatedly by the
+   * {@link SlidingWindowService}, the lock is released between the slices so that ticks can be recorded meanwhile.
+   *
+   * @return {@code true} if there are still queued instrument aggregations, {@code false} otherwise.
+   */
+  synchronized boolean evictPendingSlice() {
+    evictionQueue.evict(evictionSliceSize, this::evictInstrumentAggregation);
+    return !evictionQueue.isEmpty();
   }
 
   /**
@@ -127,4 +204,66 @@ public class InstrumentAggregator {
     Instant tickInstant = Instant.ofEpochMilli(tick.getTimestamp());
     return !tickInstant.isBefore(maxValidityInstant);
   }
+
+  private void moveWindow(long currentBucket) {
+    long minBucket = currentBucket - windowBuckets;
+    if (nextEvictedBucket < minBucket) {
+      long bucket = Math.max(nextEvictedBucket, minBucket - partialAggregations.length);
+      for (; bucket < minBucket; bucket++) {
+        int slot = getSlot(bucket);
+        if (bucketNumbers[slot] != NO_BUCKET && bucketNumbers[slot] < minBucket) {
+          evict(slot);
+        }
+      }
+      nextEvictedBucket = minBucket;
+    }
+
+    Iterator<Map.Entry<Long, PartialAggregation>> iterator = futureAggregations.headMap(currentBucket, true).entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Long, PartialAggregation> futureAggregation = iterator.next();
+      iterator.remove();
+      if (futureAggregation.getKey() < nextEvictedBucket) {
+        evict(futureAggregation.getKey(), futureAggregation.getValue());
+        continue;
+      }
+      int slot = getSlot(futureAggregation.getKey());
+      if (bucketNumbers[slot] == futureAggregation.getKey()) {
+        totalAggregation.mergePartialAggregation(partialAggregations[slot], futureAggregation.getValue());
+      } else {
+        evict(slot);
+        partialAggregations[slot] = futureAggregation.getValue();
+        bucketNumbers[slot] = futureAggregation.getKey();
+      }
+    }
+  }
+
+  private void evict(int slot) {
+    if (bucketNumbers[slot] == NO_BUCKET) {
+      return;
+    }
+    PartialAggregation expiredAggregation = partialAggregations[slot];
+    long expiredBucket = bucketNumbers[slot];
+    partialAggregations[slot] = null;
+    bucketNumbers[slot] = NO_BUCKET;
+    evict(expiredBucket, expiredAggregation);
+  }
+
+  private void evict(long bucket, PartialAggregation expiredAggregation) {
+    totalAggregation.removeAggregatedValues(expiredAggregation);
+    evictionQueue.add(Math.floorDiv(bucket * bucketWidthMillis, 1000L), expiredAggregation);
+  }
+
+  private void evictInstrumentAggregation(long epochSecond, String instrumentId, AggregatedValues instrumentAggregation) {
+    totalAggregation.removeInstrumentAggregation(instrumentId, instrumentAggregation);
+    historyAggregator.rollup(epochSecond, instrumentId, instrumentAggregation);
+  }
+
+  private long getCurrentBucket() {
+    latestBucket = Math.max(latestBucket, Math.floorDiv(clock.millis(), (long) bucketWidthMillis));
+    return latestBucket;
+  }
+
+  private int getSlot(long bucket) {
+    return (int) Math.floorMod(bucket, (long) partialAggregations.length);
+  }
 }
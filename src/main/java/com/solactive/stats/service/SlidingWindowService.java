@@ -20,24 +20,35 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 /**
- * The sole purpose of this service is to move the sliding window of the {@link InstrumentAggregator every second}.
+ * The purpose of this service is to move the sliding window of the {@link InstrumentAggregator} every BUCKET_WIDTH (e.g. 1000) milliseconds, to
+ * evict the expired instrument aggregations in the background and to drop the OHLC history outside the retention.
  */
 @Service
 public class SlidingWindowService {
 
   private final InstrumentAggregator instrumentAggregator;
+  private final HistoryAggregator historyAggregator;
 
   @Autowired
-  public SlidingWindowService(InstrumentAggregator instrumentAggregator) {
+  public SlidingWindowService(InstrumentAggregator instrumentAggregator, HistoryAggregator historyAggregator) {
     this.instrumentAggregator = instrumentAggregator;
+    this.historyAggregator = historyAggregator;
   }
 
   /**
-   * Moves the {@link InstrumentAggregator}'s sliding window every second. By doing this the sliding window will not contain expired partial
-   * aggregations.
+   * Moves the {@link InstrumentAggregator}'s sliding window every bucket width. By doing this the sliding window will not contain expired partial
+   * aggregations. The queued expired instrument aggregations are evicted slice by slice, every slice acquires the {@link InstrumentAggregator} lock
+   * separately, so that the eviction doesn't stall the recording of ticks. Afterwards the evicted instrument aggregations are rolled into the OHLC
+   * history, outside of the {@link InstrumentAggregator} lock.
    */
-  @Scheduled(fixedRate = 1000L)
+  @Scheduled(fixedRateString = "${slidingWindow.bucketWidthInMillis}")
   public void moveWindow() {
     instrumentAggregator.moveWindow();
+    boolean pendingEvictions = true;
+    while (pendingEvictions) {
+      pendingEvictions = instrumentAggregator.evictPendingSlice();
+    }
+    historyAggregator.rollupPending();
+    historyAggregator.evictExpired();
   }
 }
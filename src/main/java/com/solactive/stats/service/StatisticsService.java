@@ -16,22 +16,27 @@
 package com.solactive.stats.service;
 
 import com.solactive.stats.generated.openapi.model.Statistics;
+import com.solactive.stats.generated.openapi.model.StatisticsHistory;
 import com.solactive.stats.generated.openapi.model.Tick;
+import com.solactive.stats.model.BarResolution;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 /**
  * The {@link StatisticsService} can be seen as a service facade for storing ticks and retrieving aggregated statistics in the underlying {@link
- * InstrumentAggregator}. This service is implicitly thread-safe as it doesn't have an encapsulated state.
+ * InstrumentAggregator} and the OHLC history in the underlying {@link HistoryAggregator}. This service is implicitly thread-safe as it doesn't
+ * have an encapsulated state.
  */
 @Service
 public class StatisticsService {
 
   private final InstrumentAggregator instrumentAggregator;
+  private final HistoryAggregator historyAggregator;
 
   @Autowired
-  public StatisticsService(InstrumentAggregator instrumentAggregator) {
+  public StatisticsService(InstrumentAggregator instrumentAggregator, HistoryAggregator historyAggregator) {
     this.instrumentAggregator = instrumentAggregator;
+    this.historyAggregator = historyAggregator;
   }
 
   /**
@@ -64,6 +69,19 @@ public class StatisticsService {
     return instrumentAggregator.getStatisticsForInstrument(instrumentId);
   }
 
+  /**
+   * Returns the OHLC history bars of the given instrument identifier that start in the range [from, to].
+   *
+   * @param instrumentId The instrument identifier.
+   * @param from The min. bar start in milliseconds (inclusive).
+   * @param to The max. bar start in milliseconds (inclusive).
+   * @param resolution The bar resolution.
+   * @return The instrument OHLC history.
+   */
+  public StatisticsHistory getHistoryForInstrument(String instrumentId, long from, long to, BarResolution resolution) {
+    return historyAggregator.getHistoryForInstrument(instrumentId, from, to, resolution);
+  }
+
   /**
    * Checks if the tick timestamp is older than 60 seconds.
    *
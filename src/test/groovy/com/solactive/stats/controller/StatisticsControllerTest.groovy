@@ -16,10 +16,14 @@
 package com.solactive.stats.controller
 
 import com.solactive.stats.generated.openapi.model.Statistics
+import com.solactive.stats.generated.openapi.model.StatisticsHistory
 import com.solactive.stats.generated.openapi.model.Tick
+import com.solactive.stats.model.BarResolution
 import com.solactive.stats.service.StatisticsService
 import org.springframework.http.HttpStatus
 import org.springframework.http.ResponseEntity
+import org.zalando.problem.Status
+import org.zalando.problem.ThrowableProblem
 import spock.lang.Specification
 
 class StatisticsControllerTest extends Specification {
@@ -89,4 +93,33 @@ class StatisticsControllerTest extends Specification {
     1 * statisticsServiceMock.getStatisticsForInstrument(instrumentId) >> instrumentStats
     result == expectedResponse
   }
+
+  def "getStatisticsHistoryForInstrument returns a HTTP 200 ResponseEntity with a StatisticsHistory object for a given instrument identifier"() {
+    given:
+    def instrumentId = "ABC"
+    def history = new StatisticsHistory()
+    def expectedResponse = ResponseEntity.ok(history)
+
+    when:
+    def result = sut.getStatisticsHistoryForInstrument(instrumentId, 1000L, 2000L, "1m")
+
+    then:
+    1 * statisticsServiceMock.getHistoryForInstrument(instrumentId, 1000L, 2000L, BarResolution.MINUTE) >> history
+    result == expectedResponse
+  }
+
+  def "getStatisticsHistoryForInstrument rejects invalid parameters with a HTTP 400 problem"() {
+    when:
+    sut.getStatisticsHistoryForInstrument("ABC", from, to, resolution)
+
+    then:
+    def problem = thrown(ThrowableProblem)
+    problem.getStatus() == Status.BAD_REQUEST
+    0 * statisticsServiceMock.getHistoryForInstrument(*_)
+
+    where:
+    from  | to    | resolution
+    1000L | 2000L | "5m"
+    2000L | 1000L | "1s"
+  }
 }
@@ -63,6 +63,46 @@ class AggregatedValuesTest extends Specification {
     sut.getCount() == 2
   }
 
+  def "updateValues with timestamps sets the open and close price according to the tick timestamps"() {
+    given:
+    def sut = new AggregatedValues()
+
+    when:
+    sut.updateValues(new BigDecimal("20.00"), 2000L)
+    sut.updateValues(new BigDecimal("10.00"), 1000L)
+    sut.updateValues(new BigDecimal("40.00"), 4000L)
+    sut.updateValues(new BigDecimal("30.00"), 3000L)
+
+    then:
+    sut.getOpenPrice() == new BigDecimal("10.00")
+    sut.getClosePrice() == new BigDecimal("40.00")
+    sut.getMinPrice() == new BigDecimal("10.00")
+    sut.getMaxPrice() == new BigDecimal("40.00")
+    sut.getCount() == 4
+  }
+
+  def "merge adds the aggregated values and keeps the open/close price of the earliest/latest tick"() {
+    given:
+    def sut = new AggregatedValues()
+    def otherAgg = new AggregatedValues()
+    sut.updateValues(new BigDecimal("20.00"), 2000L)
+    sut.updateValues(new BigDecimal("30.00"), 3000L)
+    otherAgg.updateValues(new BigDecimal("10.00"), 1000L)
+    otherAgg.updateValues(new BigDecimal("40.00"), 4000L)
+
+    when:
+    sut.merge(otherAgg)
+    sut.merge(new AggregatedValues())
+
+    then:
+    sut.getOpenPrice() == new BigDecimal("10.00")
+    sut.getClosePrice() == new BigDecimal("40.00")
+    sut.getMinPrice() == new BigDecimal("10.00")
+    sut.getMaxPrice() == new BigDecimal("40.00")
+    sut.getPriceSum() == new BigDecimal("100.00")
+    sut.getCount() == 4
+  }
+
   def "subtractPartialAggregation subtracts the number of ticks and the sum tick price, and sets the new min and max tick price"() {
     given:
     def sut = new AggregatedValues()
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model
+
+import com.solactive.stats.generated.openapi.model.Tick
+import spock.lang.Specification
+
+class EvictionQueueTest extends Specification {
+
+  static final EPOCH_SECOND = 1590839940L
+
+  def sut = new EvictionQueue()
+  def evictorMock = Mock(EvictionQueue.InstrumentEvictor)
+
+  def "EvictionQueue constructor creates an empty queue"() {
+    expect:
+    sut.isEmpty()
+    sut.getPendingInstruments() == 0
+  }
+
+  def "add ignores empty partial aggregations"() {
+    when:
+    sut.add(EPOCH_SECOND, new PartialAggregation())
+
+    then:
+    sut.isEmpty()
+  }
+
+  def "evict evicts at most the given number of instruments in the queue order"() {
+    given:
+    sut.add(EPOCH_SECOND, createPartialAggregation(["ABC", "DEF", "XYZ"]))
+    sut.add(EPOCH_SECOND + 1, createPartialAggregation(["ABC", "DEF"]))
+
+    when:
+    def result = sut.evict(2, evictorMock)
+
+    then:
+    result == 2
+    2 * evictorMock.evict(EPOCH_SECOND, _, _)
+    sut.getPendingInstruments() == 3
+
+    when:
+    result = sut.evict(2, evictorMock)
+
+    then:
+    result == 2
+    1 * evictorMock.evict(EPOCH_SECOND, _, _)
+
+    then:
+    1 * evictorMock.evict(EPOCH_SECOND + 1, _, _)
+
+    when:
+    result = sut.evict(2, evictorMock)
+
+    then:
+    result == 1
+    1 * evictorMock.evict(EPOCH_SECOND + 1, _, _)
+    sut.isEmpty()
+  }
+
+  def "evictInstrument evicts the instrument from all queued partial aggregations once"() {
+    given:
+    sut.add(EPOCH_SECOND, createPartialAggregation(["ABC", "DEF"]))
+    sut.add(EPOCH_SECOND + 1, createPartialAggregation(["ABC"]))
+
+    when:
+    sut.evictInstrument("ABC", evictorMock)
+    sut.evictInstrument("ABC", evictorMock)
+
+    then:
+    1 * evictorMock.evict(EPOCH_SECOND, "ABC", _)
+
+    then:
+    1 * evictorMock.evict(EPOCH_SECOND + 1, "ABC", _)
+    sut.getPendingInstruments() == 1
+
+    when:
+    sut.evict(10, evictorMock)
+
+    then:
+    1 * evictorMock.evict(EPOCH_SECOND, "DEF", _)
+    0 * evictorMock.evict(_, "ABC", _)
+    sut.isEmpty()
+  }
+
+  private PartialAggregation createPartialAggregation(List<String> instruments) {
+    def partialAggregation = new PartialAggregation()
+    instruments.each {
+      instrument -> partialAggregation.updateValues(new Tick().instrument(instrument).price(new BigDecimal("10.00")).timestamp(EPOCH_SECOND * 1000L))
+    }
+    return partialAggregation
+  }
+}
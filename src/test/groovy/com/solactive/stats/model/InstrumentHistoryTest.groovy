@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.model
+
+import com.solactive.stats.generated.openapi.model.Tick
+import spock.lang.Specification
+
+class InstrumentHistoryTest extends Specification {
+
+  static final EPOCH_SECOND = 1590839940L
+
+  def sut = new InstrumentHistory(3600L, 86400L, null)
+
+  def "getHistoryForInstrument returns empty columns for an unknown instrument"() {
+    when:
+    def result = sut.getHistoryForInstrument("UNKNOWN", 0L, Long.MAX_VALUE, BarResolution.SECOND)
+
+    then:
+    result.getInstrument() == "UNKNOWN"
+    result.getResolution() == "1s"
+    result.getTimestamps().isEmpty()
+    result.getOpen().isEmpty()
+    result.getCount().isEmpty()
+  }
+
+  def "addInstrumentAggregation rolls the evicted buckets into 1s bars"() {
+    given:
+    def bucket1 = createPartialAggregation(EPOCH_SECOND, [new BigDecimal("10.00"), new BigDecimal("12.50"), new BigDecimal("9.99")])
+    def bucket2 = createPartialAggregation(EPOCH_SECOND + 1, [new BigDecimal("11.11")])
+
+    when:
+    addPartialAggregation(sut, EPOCH_SECOND, bucket1)
+    addPartialAggregation(sut, EPOCH_SECOND + 1, bucket2)
+
+    then:
+    def result = sut.getHistoryForInstrument("ABC", EPOCH_SECOND * 1000L, (EPOCH_SECOND + 1) * 1000L, BarResolution.SECOND)
+    result.getTimestamps() == [EPOCH_SECOND * 1000L, (EPOCH_SECOND + 1) * 1000L]
+    result.getOpen() == [new BigDecimal("10.00"), new BigDecimal("11.11")]
+    result.getHigh() == [new BigDecimal("12.50"), new BigDecimal("11.11")]
+    result.getLow() == [new BigDecimal("9.99"), new BigDecimal("11.11")]
+    result.getClose() == [new BigDecimal("9.99"), new BigDecimal("11.11")]
+    result.getCount() == [3L, 1L]
+  }
+
+  def "addInstrumentAggregation rolls the evicted buckets of a minute into a single 1m bar"() {
+    given:
+    def buckets = (0..59).collect {
+      createPartialAggregation(EPOCH_SECOND + it, [new BigDecimal(100 + it), new BigDecimal(50 + it)])
+    }
+
+    when:
+    buckets.eachWithIndex { bucket, index -> addPartialAggregation(sut, EPOCH_SECOND + index, bucket) }
+
+    then:
+    def result = sut.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.MINUTE)
+    result.getResolution() == "1m"
+    result.getTimestamps() == [EPOCH_SECOND * 1000L]
+    result.getOpen() == [new BigDecimal("100.00")]
+    result.getHigh() == [new BigDecimal("159.00")]
+    result.getLow() == [new BigDecimal("50.00")]
+    result.getClose() == [new BigDecimal("109.00")]
+    result.getCount() == [120L]
+  }
+
+  def "getHistoryForInstrument returns only the bars in the requested range across several chunks"() {
+    given:
+    def barCount = BarSeries.CHUNK_CAPACITY * 3
+    (0..<barCount).each {
+      addPartialAggregation(sut, EPOCH_SECOND + it, createPartialAggregation(EPOCH_SECOND + it, [new BigDecimal(it)]))
+    }
+    def from = (EPOCH_SECOND + 100) * 1000L
+    def to = (EPOCH_SECOND + 600) * 1000L
+
+    when:
+    def result = sut.getHistoryForInstrument("ABC", from, to, BarResolution.SECOND)
+
+    then:
+    result.getTimestamps().size() == 501
+    result.getTimestamps().first() == from
+    result.getTimestamps().last() == to
+    result.getClose().first() == new BigDecimal("100.00")
+    result.getClose().last() == new BigDecimal("600.00")
+  }
+
+  def "getMaxBarCount counts the bars of the chunks that overlap the requested range without decoding them"() {
+    given:
+    def barCount = BarSeries.CHUNK_CAPACITY * 3
+    (0..<barCount).each {
+      addPartialAggregation(sut, EPOCH_SECOND + it, createPartialAggregation(EPOCH_SECOND + it, [new BigDecimal(it)]))
+    }
+    def instrumentSeries = sut.series.get(BarResolution.SECOND).get("ABC")
+
+    expect: "the last bar is still pending and not yet encoded into a chunk"
+    instrumentSeries.getMaxBarCount(EPOCH_SECOND + 300, EPOCH_SECOND + 310) == BarSeries.CHUNK_CAPACITY
+    instrumentSeries.getMaxBarCount(EPOCH_SECOND + 100, EPOCH_SECOND + 600) == BarSeries.CHUNK_CAPACITY * 3 - 1
+    instrumentSeries.getMaxBarCount(EPOCH_SECOND + 600, EPOCH_SECOND + barCount) == BarSeries.CHUNK_CAPACITY
+    instrumentSeries.getMaxBarCount(EPOCH_SECOND + barCount, EPOCH_SECOND + barCount + 10) == 0
+  }
+
+  def "evictExpired drops the bars outside the retention"() {
+    given:
+    def sut = new InstrumentHistory(BarSeries.CHUNK_CAPACITY, 86400L, null)
+    def barCount = BarSeries.CHUNK_CAPACITY * 3
+
+    when:
+    (0..<barCount).each {
+      addPartialAggregation(sut, EPOCH_SECOND + it, createPartialAggregation(EPOCH_SECOND + it, [new BigDecimal(it)]))
+    }
+
+    then:
+    def result = sut.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.SECOND)
+    result.getTimestamps().first() > EPOCH_SECOND * 1000L
+    result.getTimestamps().last() == (EPOCH_SECOND + barCount - 1) * 1000L
+    sut.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.MINUTE).getTimestamps().first() == EPOCH_SECOND * 1000L
+  }
+
+  def "addInstrumentAggregation stores the sealed chunks in the memory-mapped spill"() {
+    given:
+    def spillDirectory = File.createTempDir().toPath()
+    def sut = new InstrumentHistory(3600L, 86400L, spillDirectory)
+    def barCount = BarSeries.CHUNK_CAPACITY * 2
+
+    when:
+    (0..<barCount).each {
+      addPartialAggregation(sut, EPOCH_SECOND + it, createPartialAggregation(EPOCH_SECOND + it, [new BigDecimal(it)]))
+    }
+
+    then:
+    spillDirectory.toFile().list().length == 1
+    def result = sut.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.SECOND)
+    result.getTimestamps().size() == barCount
+    result.getClose() == (0..<barCount).collect { new BigDecimal(it).setScale(2) }
+
+    cleanup:
+    spillDirectory.toFile().deleteDir()
+  }
+
+  def "InstrumentHistory constructor deletes the spill files of an earlier run"() {
+    given:
+    def spillDirectory = File.createTempDir().toPath()
+    ["history-0.bin", "history-7.bin", "other.txt"].each {
+      spillDirectory.resolve(it).toFile().text = "earlier run"
+    }
+
+    when:
+    new InstrumentHistory(3600L, 86400L, spillDirectory)
+
+    then:
+    spillDirectory.toFile().list() as List == ["other.txt"]
+
+    cleanup:
+    spillDirectory.toFile().deleteDir()
+  }
+
+  def "InstrumentHistory constructor rejects a spill directory that can't be created"() {
+    given:
+    def spillFile = File.createTempFile("history", ".bin")
+
+    when:
+    new InstrumentHistory(3600L, 86400L, spillFile.toPath())
+
+    then:
+    thrown(IllegalArgumentException)
+
+    cleanup:
+    spillFile.delete()
+  }
+
+  def "addInstrumentAggregation keeps the sealed chunks on the heap if the spill fails"() {
+    given:
+    def spillDirectory = File.createTempDir().toPath()
+    def sut = new InstrumentHistory(3600L, 86400L, spillDirectory)
+    def barCount = BarSeries.CHUNK_CAPACITY * 2
+
+    and:
+    spillDirectory.toFile().deleteDir()
+    spillDirectory.toFile().text = "not a directory"
+
+    when:
+    (0..<barCount).each {
+      addPartialAggregation(sut, EPOCH_SECOND + it, createPartialAggregation(EPOCH_SECOND + it, [new BigDecimal(it)]))
+    }
+
+    then:
+    def result = sut.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.SECOND)
+    result.getTimestamps().size() == barCount
+    result.getClose() == (0..<barCount).collect { new BigDecimal(it).setScale(2) }
+
+    cleanup:
+    spillDirectory.toFile().delete()
+  }
+
+  private void addPartialAggregation(InstrumentHistory sut, long epochSecond, PartialAggregation partialAggregation) {
+    partialAggregation.getAggregatedValuesPerInstrument().each {
+      instrumentId, instrumentAggregation -> sut.addInstrumentAggregation(epochSecond, instrumentId, instrumentAggregation)
+    }
+    sut.evictExpired()
+  }
+
+  private PartialAggregation createPartialAggregation(long epochSecond, List<BigDecimal> prices) {
+    def partialAggregation = new PartialAggregation()
+    prices.eachWithIndex { price, index ->
+      partialAggregation.updateValues(new Tick().instrument("ABC").price(price).timestamp(epochSecond * 1000L + index))
+    }
+    return partialAggregation
+  }
+}
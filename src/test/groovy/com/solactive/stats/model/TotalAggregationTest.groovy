@@ -40,14 +40,15 @@ class TotalAggregationTest extends Specification {
     def epochSecond = 1590839940L
     def sut = new TotalAggregation()
     def tick = new Tick().instrument("ABC").price(new BigDecimal("50.55")).timestamp(epochSecond)
-    def partialTickAggregation = createPartialTickAggregation([tick])
+    def partialTickAggregation = new PartialAggregation()
     def expectedStats = new Statistics().avg(tick.getPrice()).min(tick.getPrice()).max(tick.getPrice()).count(1)
 
     when:
     sut.updateValues(tick, partialTickAggregation)
 
     then:
-    sut.allPrices.size() == 1
+    sut.allPrices.size() == 2
+    sut.allPrices.getCount(tick.getPrice()) == 2
     sut.allPrices.first() == tick.getPrice()
     sut.allPrices.last() == tick.getPrice()
     sut.getStatistics() == expectedStats
@@ -63,8 +64,8 @@ class TotalAggregationTest extends Specification {
                         new Tick().instrument("DEF").price(new BigDecimal("150.22")).timestamp(epochSecond1)]
     def ticksBucket2 = [new Tick().instrument("ABC").price(new BigDecimal("60.32")).timestamp(epochSecond2),
                         new Tick().instrument("EFG").price(new BigDecimal("11.55")).timestamp(epochSecond2)]
-    def partialAgg1 = createPartialTickAggregation(ticksBucket1)
-    def partialAgg2 = createPartialTickAggregation(ticksBucket2)
+    def partialAgg1 = new PartialAggregation()
+    def partialAgg2 = new PartialAggregation()
     def allTicks = ticksBucket1 + ticksBucket2
 
     when:
@@ -94,7 +95,7 @@ class TotalAggregationTest extends Specification {
     sut.allPrices.last() == ticksBucket1.get(1).getPrice()
   }
 
-  def "removePartialAggregation for multiple PartialAggregation updates the total/instrument aggregated values"() {
+  def "removeAggregatedValues & removeInstrumentAggregation for multiple PartialAggregation update the total/instrument aggregated values"() {
     given:
     def sut = new TotalAggregation()
     def epochSecond1 = 1590839940L
@@ -109,9 +110,9 @@ class TotalAggregationTest extends Specification {
     def ticksBucket3 = [new Tick().instrument("DEF").price(new BigDecimal("450.33")).timestamp(epochSecond3),
                         new Tick().instrument("ZXY").price(new BigDecimal("11.66")).timestamp(epochSecond3),
                         new Tick().instrument("ABC").price(new BigDecimal("3.22")).timestamp(epochSecond3)]
-    def partialAgg1 = createPartialTickAggregation(ticksBucket1)
-    def partialAgg2 = createPartialTickAggregation(ticksBucket2)
-    def partialAgg3 = createPartialTickAggregation(ticksBucket3)
+    def partialAgg1 = new PartialAggregation()
+    def partialAgg2 = new PartialAggregation()
+    def partialAgg3 = new PartialAggregation()
     def ticksBucket2And3 = ticksBucket2 + ticksBucket3
 
     and:
@@ -126,7 +127,7 @@ class TotalAggregationTest extends Specification {
     }
 
     when:
-    sut.removePartialAggregation(partialAgg1)
+    evictPartialAggregation(sut, partialAgg1)
 
     then:
     sut.allPrices.size() == 4
@@ -150,7 +151,7 @@ class TotalAggregationTest extends Specification {
 
 
     when:
-    sut.removePartialAggregation(partialAgg2)
+    evictPartialAggregation(sut, partialAgg2)
 
     then:
     sut.allPrices.size() == 2
@@ -173,7 +174,7 @@ class TotalAggregationTest extends Specification {
     zxyInstrumentStats.getCount() == ticksBucket3.stream().filter(t -> t.getInstrument() == zxyInst).count()
   }
 
-  def "updateValues & removePartialAggregation return empty statistics"() {
+  def "updateValues & removeAggregatedValues & removeInstrumentAggregation return empty statistics"() {
     given:
     def epochSecond1 = 1590839940L
     def epochSecond2 = 1590839941L
@@ -182,8 +183,8 @@ class TotalAggregationTest extends Specification {
                         new Tick().instrument("DEF").price(new BigDecimal("150.32")).timestamp(epochSecond1)]
     def ticksBucket2 = [new Tick().instrument("ABC").price(new BigDecimal("60.18")).timestamp(epochSecond2),
                         new Tick().instrument("EFG").price(new BigDecimal("11.43")).timestamp(epochSecond2)]
-    def partialAgg1 = createPartialTickAggregation(ticksBucket1)
-    def partialAgg2 = createPartialTickAggregation(ticksBucket2)
+    def partialAgg1 = new PartialAggregation()
+    def partialAgg2 = new PartialAggregation()
     def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
 
     when:
@@ -193,20 +194,153 @@ class TotalAggregationTest extends Specification {
     ticksBucket2.each {
       tick -> sut.updateValues(tick, partialAgg2)
     }
-    sut.removePartialAggregation(partialAgg1)
-    sut.removePartialAggregation(partialAgg2)
+    evictPartialAggregation(sut, partialAgg1)
+    evictPartialAggregation(sut, partialAgg2)
 
     then:
     sut.getStatistics() == emptyStats
   }
 
-  def "removePartialAggregation ignores empty PartialAggregations"() {
+  def "removeAggregatedValues & removeInstrumentAggregation subtract a partial aggregation in several steps"() {
+    given:
+    def epochSecond1 = 1590839940L
+    def epochSecond2 = 1590839941L
+    def sut = new TotalAggregation()
+    def ticksBucket1 = [new Tick().instrument("ABC").price(new BigDecimal("25.11")).timestamp(epochSecond1),
+                        new Tick().instrument("DEF").price(new BigDecimal("150.32")).timestamp(epochSecond1)]
+    def ticksBucket2 = [new Tick().instrument("ABC").price(new BigDecimal("60.18")).timestamp(epochSecond2)]
+    def partialAgg1 = new PartialAggregation()
+    def partialAgg2 = new PartialAggregation()
+    def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
+    def abcStats = new Statistics().avg(new BigDecimal("60.18")).min(new BigDecimal("60.18")).max(new BigDecimal("60.18")).count(1L)
+
+    and:
+    ticksBucket1.each {
+      tick -> sut.updateValues(tick, partialAgg1)
+    }
+    ticksBucket2.each {
+      tick -> sut.updateValues(tick, partialAgg2)
+    }
+
+    when:
+    sut.removeAggregatedValues(partialAgg1)
+
+    then:
+    sut.getStatistics() == abcStats
+    sut.getStatisticsForInstrument("DEF").getCount() == 1
+
+    when:
+    sut.removeInstrumentAggregation("ABC", partialAgg1.getAggregatedValuesForInstrument("ABC"))
+    sut.removeInstrumentAggregation("DEF", partialAgg1.getAggregatedValuesForInstrument("DEF"))
+
+    then:
+    sut.getStatistics() == abcStats
+    sut.getStatisticsForInstrument("ABC") == abcStats
+    sut.getStatisticsForInstrument("DEF") == emptyStats
+  }
+
+  def "removeAggregatedValues & removeInstrumentAggregation count the min/max prices that several buckets share"() {
+    given:
+    def epochSecond1 = 1590839940L
+    def epochSecond2 = 1590839941L
+    def sut = new TotalAggregation()
+    def ticksBucket1 = [new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(epochSecond1),
+                        new Tick().instrument("ABC").price(new BigDecimal("30.00")).timestamp(epochSecond1)]
+    def ticksBucket2 = [new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(epochSecond2),
+                        new Tick().instrument("ABC").price(new BigDecimal("20.00")).timestamp(epochSecond2)]
+    def partialAgg1 = new PartialAggregation()
+    def partialAgg2 = new PartialAggregation()
+    def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
+    def bucket2Stats = new Statistics().avg(new BigDecimal("15.00")).min(new BigDecimal("10.00")).max(new BigDecimal("20.00")).count(2L)
+
+    and:
+    ticksBucket1.each {
+      tick -> sut.updateValues(tick, partialAgg1)
+    }
+    ticksBucket2.each {
+      tick -> sut.updateValues(tick, partialAgg2)
+    }
+
+    when:
+    evictPartialAggregation(sut, partialAgg1)
+
+    then:
+    sut.allPrices.getCount(new BigDecimal("10.00")) == 1
+    sut.getStatistics() == bucket2Stats
+    sut.getStatisticsForInstrument("ABC") == bucket2Stats
+
+    when:
+    evictPartialAggregation(sut, partialAgg2)
+
+    then:
+    sut.allPrices.isEmpty()
+    sut.instrumentPrices.isEmpty()
+    sut.getStatistics() == emptyStats
+    sut.getStatisticsForInstrument("ABC") == emptyStats
+  }
+
+  def "updateValues replaces the previous min/max price of the partial aggregation"() {
+    given:
+    def epochSecond = 1590839940L
+    def sut = new TotalAggregation()
+    def partialAgg = new PartialAggregation()
+    def ticks = [new Tick().instrument("ABC").price(new BigDecimal("20.00")).timestamp(epochSecond),
+                 new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(epochSecond),
+                 new Tick().instrument("ABC").price(new BigDecimal("30.00")).timestamp(epochSecond)]
+
+    when:
+    ticks.each {
+      tick -> sut.updateValues(tick, partialAgg)
+    }
+
+    then:
+    sut.allPrices.size() == 2
+    sut.allPrices.first() == new BigDecimal("10.00")
+    sut.allPrices.last() == new BigDecimal("30.00")
+    sut.instrumentPrices.get("ABC").size() == 2
+    partialAgg.getAggregatedValues().getCount() == 3
+  }
+
+  def "mergePartialAggregation merges two partial aggregations of the same bucket and replaces their min/max prices"() {
+    given:
+    def epochSecond = 1590839940L
+    def sut = new TotalAggregation()
+    def partialAgg = new PartialAggregation()
+    def mergedAgg = new PartialAggregation()
+    def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
+
+    and:
+    sut.updateValues(new Tick().instrument("ABC").price(new BigDecimal("20.00")).timestamp(epochSecond), partialAgg)
+    sut.updateValues(new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(epochSecond), mergedAgg)
+    sut.updateValues(new Tick().instrument("DEF").price(new BigDecimal("30.00")).timestamp(epochSecond), mergedAgg)
+
+    when:
+    sut.mergePartialAggregation(partialAgg, mergedAgg)
+
+    then:
+    sut.allPrices.size() == 2
+    sut.instrumentPrices.get("ABC").size() == 2
+    sut.instrumentPrices.get("DEF").size() == 2
+    partialAgg.getAggregatedValues().getCount() == 3
+    partialAgg.getAggregatedValuesForInstrument("ABC").getCount() == 2
+    sut.getStatistics() == new Statistics().avg(new BigDecimal("20.00")).min(new BigDecimal("10.00")).max(new BigDecimal("30.00")).count(3L)
+
+    when:
+    evictPartialAggregation(sut, partialAgg)
+
+    then:
+    sut.allPrices.isEmpty()
+    sut.instrumentPrices.isEmpty()
+    sut.getStatistics() == emptyStats
+  }
+
+  def "removeAggregatedValues ignores empty PartialAggregations"() {
     given:
     def epochSecond = 1590839940L
     def sut = new TotalAggregation()
     def ticks = [new Tick().instrument("ABC").price(new BigDecimal("25.22")).timestamp(epochSecond),
                  new Tick().instrument("DEF").price(new BigDecimal("150.43")).timestamp(epochSecond)]
-    def partialAgg1 = createPartialTickAggregation(ticks)
+    def partialAgg1 = new PartialAggregation()
     def emptyPartialAggregation = new PartialAggregation()
 
     and:
@@ -215,7 +349,7 @@ class TotalAggregationTest extends Specification {
     }
 
     when:
-    sut.removePartialAggregation(emptyPartialAggregation)
+    sut.removeAggregatedValues(emptyPartialAggregation)
 
     then:
     def totalStats = sut.getStatistics()
@@ -225,11 +359,10 @@ class TotalAggregationTest extends Specification {
     totalStats.getCount() == ticks.size()
   }
 
-  private PartialAggregation createPartialTickAggregation(List<Tick> ticks) {
-    def partialAggregation = new PartialAggregation()
-    ticks.each {
-      tick -> partialAggregation.updateValues(tick)
+  private void evictPartialAggregation(TotalAggregation sut, PartialAggregation partialAggregation) {
+    sut.removeAggregatedValues(partialAggregation)
+    partialAggregation.getAggregatedValuesPerInstrument().each {
+      instrumentId, instrumentAggregation -> sut.removeInstrumentAggregation(instrumentId, instrumentAggregation)
     }
-    return partialAggregation
   }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.solactive.stats.service
+
+import com.solactive.stats.model.AggregatedValues
+import com.solactive.stats.model.BarResolution
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class HistoryAggregatorTest extends Specification {
+
+  static final EPOCH_SECOND = 1590839940L
+
+  def sut = new HistoryAggregator(3600L, 86400L, "")
+
+  def "rollup queues the instrument aggregation until the pending rollups are rolled into the history"() {
+    when:
+    sut.rollup(EPOCH_SECOND, "ABC", createAggregatedValues(new BigDecimal("10.00")))
+
+    then:
+    sut.instrumentHistory.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.SECOND).getTimestamps().isEmpty()
+
+    when:
+    sut.rollupPending()
+
+    then:
+    sut.instrumentHistory.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.SECOND).getTimestamps() == [EPOCH_SECOND * 1000L]
+    sut.pendingRollups.isEmpty()
+  }
+
+  def "getHistoryForInstrument rolls the pending rollups into the history first"() {
+    given:
+    sut.rollup(EPOCH_SECOND, "ABC", createAggregatedValues(new BigDecimal("10.00")))
+    sut.rollup(EPOCH_SECOND + 1, "ABC", createAggregatedValues(new BigDecimal("11.00")))
+
+    when:
+    def result = sut.getHistoryForInstrument("ABC", 0L, Long.MAX_VALUE, BarResolution.SECOND)
+
+    then:
+    result.getTimestamps() == [EPOCH_SECOND * 1000L, (EPOCH_SECOND + 1) * 1000L]
+    result.getClose() == [new BigDecimal("10.00"), new BigDecimal("11.00")]
+  }
+
+  def "rollup doesn't wait for the history lock"() {
+    given:
+    def locked = new CountDownLatch(1)
+    def release = new CountDownLatch(1)
+    def lockHolder = Thread.start {
+      synchronized (sut) {
+        locked.countDown()
+        release.await()
+      }
+    }
+    locked.await()
+
+    when:
+    CompletableFuture.runAsync { sut.rollup(EPOCH_SECOND, "ABC", createAggregatedValues(new BigDecimal("10.00"))) }.get(5, TimeUnit.SECONDS)
+
+    then:
+    noExceptionThrown()
+    sut.pendingRollups.size() == 1
+
+    cleanup:
+    release.countDown()
+    lockHolder.join()
+  }
+
+  private AggregatedValues createAggregatedValues(BigDecimal price) {
+    def aggregatedValues = new AggregatedValues()
+    aggregatedValues.updateValues(price, EPOCH_SECOND * 1000L)
+    return aggregatedValues
+  }
+}
@@ -23,18 +23,23 @@ import spock.lang.Specification
 import spock.lang.Unroll
 
 import javax.validation.ClockProvider
+import java.lang.management.ManagementFactory
+import java.time.Duration
 import java.time.ZoneId
 
 class InstrumentAggregatorTest extends Specification {
 
   static final WINDOW_SIZE_SECONDS = 60
+  static final BUCKET_WIDTH_MILLIS = 1000
+  static final EVICTION_SLICE_SIZE = 512
 
   @Shared
   def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
   def clockProviderMock = Mock(ClockProvider) {
     getClock() >> mockClock
   }
-  def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS)
+  def historyAggregatorMock = Mock(HistoryAggregator)
+  def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
 
   def "AggregationService constructor adds 60 epoch seconds buckets"() {
     given:
@@ -44,11 +49,16 @@ class InstrumentAggregatorTest extends Specification {
     }
 
     when:
-    def tickAggregator = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS)
+    def tickAggregator = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE,
+        historyAggregatorMock)
 
     then:
     tickAggregator.windowSizeSeconds == WINDOW_SIZE_SECONDS
+    tickAggregator.bucketWidthMillis == BUCKET_WIDTH_MILLIS
+    tickAggregator.evictionSliceSize == EVICTION_SLICE_SIZE
+    tickAggregator.partialAggregations.length == 61
     tickAggregator.clock == mockClock
+    tickAggregator.historyAggregator == historyAggregatorMock
   }
 
   def "moveWindow on empty aggregations is a noop"() {
@@ -138,7 +148,7 @@ class InstrumentAggregatorTest extends Specification {
   def "getStatistics returns an empty Statistics object if the stored tick is not anymore in the last 60 seconds"() {
     given:
     def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
-    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS)
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
     def timestamp = mockClock.instant().minusSeconds(50).toEpochMilli()
     def tick1 = new Tick().instrument("ABC").price(new BigDecimal("50.22")).timestamp(timestamp)
 
@@ -157,7 +167,7 @@ class InstrumentAggregatorTest extends Specification {
     given:
     def instrumentId = "ABC"
     def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
-    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS)
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
     def timestamp = mockClock.instant().minusSeconds(50).toEpochMilli()
     def tick1 = new Tick().instrument(instrumentId).price(10.0).timestamp(timestamp)
 
@@ -178,7 +188,7 @@ class InstrumentAggregatorTest extends Specification {
     def clockProviderMock = Mock(ClockProvider) {
       getClock() >> mockClock
     }
-    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS)
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
 
     def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
     def timestamp1 = mockClock.instant().toEpochMilli()
@@ -229,4 +239,295 @@ class InstrumentAggregatorTest extends Specification {
     then:
     sut.getStatistics() == emptyStats
   }
+
+  def "moveWindow rolls the evicted partial aggregations into the history"() {
+    given:
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
+    def timestamp = mockClock.instant().minusSeconds(50).toEpochMilli()
+    def tick = new Tick().instrument("ABC").price(new BigDecimal("50.22")).timestamp(timestamp)
+
+    and:
+    sut.record(tick)
+    mockClock.advanceBySeconds(11)
+
+    when:
+    sut.moveWindow()
+    sut.evictPendingSlice()
+
+    then:
+    1 * historyAggregatorMock.rollup(Math.floorDiv(timestamp, 1000L), "ABC", _)
+  }
+
+  def "InstrumentAggregator constructor rejects a bucket width that is not a divisor of 1000 milliseconds"() {
+    when:
+    new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, 300, EVICTION_SLICE_SIZE, historyAggregatorMock)
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+  @Unroll
+  def "InstrumentAggregator constructor rejects the eviction slice size #evictionSliceSize"() {
+    when:
+    new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, evictionSliceSize, historyAggregatorMock)
+
+    then:
+    thrown(IllegalArgumentException)
+
+    where:
+    evictionSliceSize << [0, -1]
+  }
+
+  def "record keeps a tick one bucket ahead out of the slot of the oldest bucket inside the window"() {
+    given:
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
+    def oldestTimestamp = mockClock.millis() - WINDOW_SIZE_SECONDS * 1000L
+    def futureTimestamp = mockClock.millis() + BUCKET_WIDTH_MILLIS
+
+    when:
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(oldestTimestamp))
+    sut.record(new Tick().instrument("DEF").price(new BigDecimal("20.00")).timestamp(futureTimestamp))
+    sut.evictPendingSlice()
+
+    then:
+    sut.getStatistics() == new Statistics().avg(new BigDecimal("15.00")).min(new BigDecimal("10.00")).max(new BigDecimal("20.00")).count(2L)
+    0 * historyAggregatorMock.rollup(*_)
+
+    when:
+    mockClock.advanceBySeconds(1)
+    sut.moveWindow()
+    sut.evictPendingSlice()
+
+    then:
+    sut.getStatistics() == new Statistics().avg(new BigDecimal("20.00")).min(new BigDecimal("20.00")).max(new BigDecimal("20.00")).count(1L)
+    sut.getStatisticsForInstrument("DEF").getCount() == 1
+    1 * historyAggregatorMock.rollup(Math.floorDiv(oldestTimestamp, 1000L), "ABC", _)
+    0 * historyAggregatorMock.rollup(_, "DEF", _)
+  }
+
+  def "record rolls a far-future tick into the history after the ticks before it"() {
+    given:
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
+    def futureTimestamp = mockClock.instant().plusSeconds(3600).toEpochMilli()
+    def timestamps = (0..<(WINDOW_SIZE_SECONDS + 1)).collect { mockClock.instant().plusSeconds(it).toEpochMilli() }
+
+    when: "the real ticks claim every slot of the circular buffer, including the slot of the future bucket"
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("99.00")).timestamp(futureTimestamp))
+    timestamps.each {
+      mockClock.advanceBy(Duration.ofMillis(it - mockClock.millis()))
+      sut.record(new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(it))
+    }
+    mockClock.advanceBySeconds(WINDOW_SIZE_SECONDS + 1)
+    sut.moveWindow()
+    while (sut.evictPendingSlice()) {
+    }
+
+    then:
+    (WINDOW_SIZE_SECONDS + 1) * historyAggregatorMock.rollup({ it in timestamps.collect { ts -> Math.floorDiv(ts, 1000L) } }, "ABC", _)
+    0 * historyAggregatorMock.rollup(Math.floorDiv(futureTimestamp, 1000L), "ABC", _)
+    sut.getStatisticsForInstrument("ABC") == new Statistics().avg(new BigDecimal("99.00")).min(new BigDecimal("99.00"))
+        .max(new BigDecimal("99.00")).count(1L)
+
+    when:
+    mockClock.advanceBy(Duration.ofMillis(futureTimestamp - mockClock.millis()).plusSeconds(WINDOW_SIZE_SECONDS + 1))
+    sut.moveWindow()
+    sut.evictPendingSlice()
+
+    then:
+    1 * historyAggregatorMock.rollup(Math.floorDiv(futureTimestamp, 1000L), "ABC", _)
+    sut.getStatistics().getCount() == 0
+  }
+
+  def "record keeps the window at the latest bucket when the clock steps backwards"() {
+    given:
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE, historyAggregatorMock)
+    def latestTimestamp = mockClock.millis()
+
+    when:
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(latestTimestamp))
+    mockClock.rewindBy(Duration.ofSeconds(5))
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("20.00")).timestamp(mockClock.millis()))
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("30.00")).timestamp(latestTimestamp))
+    sut.record(new Tick().instrument("DEF").price(new BigDecimal("40.00")).timestamp(latestTimestamp + BUCKET_WIDTH_MILLIS))
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("99.00")).timestamp(latestTimestamp - (WINDOW_SIZE_SECONDS + 2) * 1000L))
+
+    then:
+    noExceptionThrown()
+    sut.getStatistics() == new Statistics().avg(new BigDecimal("25.00")).min(new BigDecimal("10.00")).max(new BigDecimal("40.00")).count(4L)
+    sut.getStatisticsForInstrument("ABC") == new Statistics().avg(new BigDecimal("20.00")).min(new BigDecimal("10.00"))
+        .max(new BigDecimal("30.00")).count(3L)
+
+    when:
+    mockClock.advanceBy(Duration.ofSeconds(5 + WINDOW_SIZE_SECONDS + 2))
+    sut.moveWindow()
+    while (sut.evictPendingSlice()) {
+    }
+
+    then:
+    1 * historyAggregatorMock.rollup(Math.floorDiv(latestTimestamp, 1000L) - 5, "ABC", _)
+    1 * historyAggregatorMock.rollup(Math.floorDiv(latestTimestamp, 1000L), "ABC", _)
+    0 * historyAggregatorMock.rollup(_, "ABC", _)
+    1 * historyAggregatorMock.rollup(Math.floorDiv(latestTimestamp, 1000L) + 1, "DEF", _)
+    sut.getStatistics().getCount() == 0
+  }
+
+  @Unroll
+  def "getStatistics evicts ticks at most #bucketWidthMillis milliseconds after they left the window"() {
+    given:
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, bucketWidthMillis, EVICTION_SLICE_SIZE, historyAggregatorMock)
+    def timestamp = mockClock.instant().minusMillis(59_950).toEpochMilli()
+
+    and:
+    sut.record(new Tick().instrument("ABC").price(new BigDecimal("10.00")).timestamp(timestamp))
+    mockClock.advanceBy(Duration.ofMillis(advanceMillis))
+
+    when:
+    def result = sut.getStatistics()
+
+    then:
+    result.getCount() == expectedCount
+
+    where:
+    bucketWidthMillis | advanceMillis || expectedCount
+    1000              | 100           || 1
+    1000              | 1000          || 0
+    250               | 100           || 1
+    250               | 250           || 0
+    100               | 100           || 0
+  }
+
+  def "record and moveWindow handle 600 buckets per window"() {
+    given:
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, 100, EVICTION_SLICE_SIZE, historyAggregatorMock)
+
+    when:
+    (1..900).each {
+      sut.record(new Tick().instrument("ABC").price(new BigDecimal(it)).timestamp(mockClock.millis()))
+      mockClock.advanceBy(Duration.ofMillis(100))
+    }
+    def result = sut.getStatistics()
+    sut.evictPendingSlice()
+
+    then:
+    result == new Statistics().avg(new BigDecimal("600.50")).min(new BigDecimal("301")).max(new BigDecimal("900")).count(600L)
+    300 * historyAggregatorMock.rollup(_, "ABC", _)
+  }
+
+  def "getStatisticsForInstrument evicts the instrument from the queued expired buckets before returning the statistics"() {
+    given:
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, 1, historyAggregatorMock)
+    def emptyStats = new Statistics().avg(new BigDecimal("0.00")).min(new BigDecimal("0.00")).max(new BigDecimal("0.00")).count(0L)
+
+    and:
+    ["ABC", "DEF", "XYZ"].each {
+      sut.record(new Tick().instrument(it).price(new BigDecimal("10.00")).timestamp(mockClock.millis()))
+    }
+    mockClock.advanceBySeconds(61)
+
+    when:
+    def totalStats = sut.getStatistics()
+    def instrumentStats = sut.getStatisticsForInstrument("XYZ")
+
+    then:
+    totalStats == emptyStats
+    instrumentStats == emptyStats
+    sut.evictionQueue.getPendingInstruments() == 2
+    1 * historyAggregatorMock.rollup(_, "XYZ", _)
+
+    when:
+    def slices = 1
+    while (sut.evictPendingSlice()) {
+      slices++
+    }
+
+    then:
+    slices >= 2
+    sut.evictionQueue.isEmpty()
+    1 * historyAggregatorMock.rollup(_, "ABC", _)
+    1 * historyAggregatorMock.rollup(_, "DEF", _)
+    0 * historyAggregatorMock.rollup(_, "XYZ", _)
+  }
+
+  def "record evicts an expired bucket with 20k instruments in bounded slices"() {
+    given:
+    def instruments = 20_000
+
+    when: "the first (warm-up) run is dropped"
+    def runs = (0..3).collect { recordDuringEviction(instruments) }.drop(1)
+
+    then: "every record evicts at most one slice and the statistics only contain the ticks inside the window"
+    runs.every { it.maxEvictedPerRecord == EVICTION_SLICE_SIZE && it.inWindowOnly }
+
+    and: "in every run the worst-case record CPU time (without descheduling) is bounded by a few eviction slices, not by the 40 slices of the bucket"
+    runs.every { it.maxRecordNanos / it.maxSliceNanos <= 8 }
+  }
+
+  private Map recordDuringEviction(int instruments) {
+    def threadMXBean = ManagementFactory.getThreadMXBean()
+    def mockClock = MockClock.at(2020, 5, 30, 12, 0, 0, ZoneId.of("UTC"))
+    def sut = createAggregatorWithExpiredBucket(mockClock, instruments)
+
+    def maxRecordNanos = 0L
+    def maxEvictedPerRecord = 0
+    def inWindowOnly = true
+    def recorded = 0L
+    while (recorded == 0 || !sut.evictionQueue.isEmpty()) {
+      def tick = new Tick().instrument("INSTRUMENT-" + recorded).price(BigDecimal.valueOf(instruments + recorded, 2)).timestamp(mockClock.millis())
+      def pendingBefore = recorded == 0 ? instruments : sut.evictionQueue.getPendingInstruments()
+      def start = threadMXBean.getCurrentThreadCpuTime()
+      sut.record(tick)
+      maxRecordNanos = Math.max(maxRecordNanos, threadMXBean.getCurrentThreadCpuTime() - start)
+      maxEvictedPerRecord = Math.max(maxEvictedPerRecord, pendingBefore - sut.evictionQueue.getPendingInstruments())
+      recorded++
+      inWindowOnly &= sut.getStatistics().getCount() == recorded
+    }
+
+    def backgroundSut = createAggregatorWithExpiredBucket(mockClock, instruments)
+    backgroundSut.moveWindow()
+    def maxSliceNanos = 0L
+    def pendingSlices = true
+    while (pendingSlices) {
+      def start = threadMXBean.getCurrentThreadCpuTime()
+      pendingSlices = backgroundSut.evictPendingSlice()
+      maxSliceNanos = Math.max(maxSliceNanos, threadMXBean.getCurrentThreadCpuTime() - start)
+    }
+    return [maxRecordNanos: maxRecordNanos, maxSliceNanos: maxSliceNanos, maxEvictedPerRecord: maxEvictedPerRecord, inWindowOnly: inWindowOnly]
+  }
+
+  private InstrumentAggregator createAggregatorWithExpiredBucket(MockClock mockClock, int instruments) {
+    def clockProviderMock = Mock(ClockProvider) {
+      getClock() >> mockClock
+    }
+    def sut = new InstrumentAggregator(clockProviderMock, WINDOW_SIZE_SECONDS, BUCKET_WIDTH_MILLIS, EVICTION_SLICE_SIZE,
+        new HistoryAggregator(3600L, 86400L, ""))
+    (0..<instruments).each {
+      sut.record(new Tick().instrument("INSTRUMENT-" + it).price(BigDecimal.valueOf(it, 2)).timestamp(mockClock.millis()))
+    }
+    mockClock.advanceBySeconds(WINDOW_SIZE_SECONDS + 1)
+    return sut
+  }
 }
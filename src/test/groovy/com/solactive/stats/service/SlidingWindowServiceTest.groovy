@@ -20,21 +20,32 @@ import spock.lang.Specification
 class SlidingWindowServiceTest extends Specification {
 
   def instrumentAggregatorMock = Mock(InstrumentAggregator)
-  def sut = new SlidingWindowService(instrumentAggregatorMock)
+  def historyAggregatorMock = Mock(HistoryAggregator)
+  def sut = new SlidingWindowService(instrumentAggregatorMock, historyAggregatorMock)
 
   def "SlidingWindowService constructor initializes SlidingWindowService correctly"() {
     when:
-    def result = new SlidingWindowService(instrumentAggregatorMock)
+    def result = new SlidingWindowService(instrumentAggregatorMock, historyAggregatorMock)
 
     then:
     result.instrumentAggregator == instrumentAggregatorMock
+    result.historyAggregator == historyAggregatorMock
   }
 
-  def "moveWindow moves the InstrumentAggregator sliding window"() {
+  def "moveWindow moves the sliding window, evicts all pending slices, rolls them into the history and evicts the expired history"() {
     when:
     sut.moveWindow()
 
     then:
     1 * instrumentAggregatorMock.moveWindow()
+
+    then:
+    3 * instrumentAggregatorMock.evictPendingSlice() >>> [true, true, false]
+
+    then:
+    1 * historyAggregatorMock.rollupPending()
+
+    then:
+    1 * historyAggregatorMock.evictExpired()
   }
 }
@@ -16,20 +16,24 @@
 package com.solactive.stats.service
 
 import com.solactive.stats.generated.openapi.model.Statistics
+import com.solactive.stats.generated.openapi.model.StatisticsHistory
 import com.solactive.stats.generated.openapi.model.Tick
+import com.solactive.stats.model.BarResolution
 import spock.lang.Specification
 
 class StatisticsServiceTest extends Specification {
 
   def instrumentAggregatorMock = Mock(InstrumentAggregator)
-  def sut = new StatisticsService(instrumentAggregatorMock)
+  def historyAggregatorMock = Mock(HistoryAggregator)
+  def sut = new StatisticsService(instrumentAggregatorMock, historyAggregatorMock)
 
   def "StatisticsService constructor initializes StatisticsController correctly"() {
     when:
-    def result = new StatisticsService(instrumentAggregatorMock)
+    def result = new StatisticsService(instrumentAggregatorMock, historyAggregatorMock)
 
     then:
     result.instrumentAggregator == instrumentAggregatorMock
+    result.historyAggregator == historyAggregatorMock
   }
 
   def "storeTick stores a tick in the aggregation service"() {
@@ -68,6 +72,19 @@ class StatisticsServiceTest extends Specification {
     result == instrumentStats
   }
 
+  def "getHistoryForInstrument returns the StatisticsHistory object for a given instrument identifier"() {
+    given:
+    def instrumentId = "ABC"
+    def history = new StatisticsHistory()
+
+    when:
+    def result = sut.getHistoryForInstrument(instrumentId, 1000L, 2000L, BarResolution.MINUTE)
+
+    then:
+    1 * historyAggregatorMock.getHistoryForInstrument(instrumentId, 1000L, 2000L, BarResolution.MINUTE) >> history
+    result == history
+  }
+
   def "isTickValid checks if a tick is valid"() {
     given:
     def tick = new Tick()